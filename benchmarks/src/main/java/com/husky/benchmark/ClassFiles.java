@@ -0,0 +1,67 @@
+package com.husky.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+class ClassFiles {
+    final List<String> names = new ArrayList<String>();
+    final List<byte[]> bytes = new ArrayList<byte[]>();
+
+    static ClassFiles readJar(File file) throws IOException {
+        ClassFiles files = new ClassFiles();
+        JarFile jar = new JarFile(file);
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(".class") || name.endsWith("module-info.class") || name.startsWith("META-INF/"))
+                    continue;
+
+                InputStream in = jar.getInputStream(entry);
+                try {
+                    files.names.add(name.substring(0, name.length() - ".class".length()));
+                    files.bytes.add(readFully(in));
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            jar.close();
+        }
+
+        if (files.bytes.isEmpty())
+            throw new IOException("no class files in " + file);
+
+        return files;
+    }
+
+    static byte[] read(Class<?> clazz) throws IOException {
+        InputStream in = clazz.getResourceAsStream(clazz.getSimpleName() + ".class");
+        if (in == null)
+            throw new IOException("cannot read class file of " + clazz.getName());
+
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
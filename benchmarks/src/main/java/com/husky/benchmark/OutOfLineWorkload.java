@@ -0,0 +1,27 @@
+package com.husky.benchmark;
+
+import org.openjdk.jmh.annotations.CompilerControl;
+
+import java.util.function.IntSupplier;
+
+/*
+ * Workload with a leaf the JIT may not inline, so the uninstrumented
+ * baseline still pays for the CALLS calls that the probes wrap.
+ */
+public class OutOfLineWorkload implements IntSupplier {
+    private int value;
+
+    public int getAsInt() {
+        int sum = 0;
+        for (int i = 0; i < Workload.CALLS; i++) {
+            sum += leaf(i);
+        }
+        return sum;
+    }
+
+    @CompilerControl(CompilerControl.Mode.DONT_INLINE)
+    private int leaf(int i) {
+        value += i;
+        return value;
+    }
+}
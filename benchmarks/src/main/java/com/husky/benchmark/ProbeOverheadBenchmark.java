@@ -0,0 +1,101 @@
+package com.husky.benchmark;
+
+import org.husky.AgentOption;
+import org.husky.MonitorMethodCallTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProbeOverheadBenchmark {
+    @State(Scope.Benchmark)
+    public static class Agent {
+        @Param({"null", "log", "binary", "trace", "graph", "timing", "cct"})
+        public String processor;
+
+        @Param({"tree", "stream"})
+        public String engine;
+
+        @Param({"false"})
+        public boolean async;
+
+        Class<?> instrumentedClass;
+        Class<?> instrumentedOutOfLineClass;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            MonitorMethodCallTransformer transformer = new MonitorMethodCallTransformer(
+                    new AgentOption("processor=" + processor + ":engine=" + engine + (async ? ":async" : "")));
+
+            instrumentedClass = instrument(transformer, Workload.class);
+            instrumentedOutOfLineClass = instrument(transformer, OutOfLineWorkload.class);
+        }
+
+        private static Class<?> instrument(MonitorMethodCallTransformer transformer, Class<?> workload)
+                throws Exception
+        {
+            String className = workload.getName().replace('.', '/');
+            byte[] bytes = transformer.transform(null, className, null, null, ClassFiles.read(workload));
+
+            return new SingleClassLoader(workload.getClassLoader(), workload.getName(), bytes)
+                    .loadClass(workload.getName());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Workloads {
+        IntSupplier plain;
+        IntSupplier instrumented;
+        IntSupplier plainOutOfLine;
+        IntSupplier instrumentedOutOfLine;
+
+        @Setup(Level.Trial)
+        public void setUp(Agent agent) throws Exception {
+            plain = new Workload();
+            instrumented = (IntSupplier) agent.instrumentedClass.newInstance();
+            plainOutOfLine = new OutOfLineWorkload();
+            instrumentedOutOfLine = (IntSupplier) agent.instrumentedOutOfLineClass.newInstance();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Workload.CALLS)
+    public int uninstrumented(Workloads workloads) {
+        return workloads.plain.getAsInt();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Workload.CALLS)
+    public int instrumented(Workloads workloads) {
+        return workloads.instrumented.getAsInt();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Workload.CALLS)
+    public int uninstrumentedOutOfLine(Workloads workloads) {
+        return workloads.plainOutOfLine.getAsInt();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Workload.CALLS)
+    public int instrumentedOutOfLine(Workloads workloads) {
+        return workloads.instrumentedOutOfLine.getAsInt();
+    }
+}
@@ -0,0 +1,30 @@
+package com.husky.benchmark;
+
+/*
+ * Defines one class from the given bytes and delegates everything else, so
+ * an instrumented copy can live next to the original class.
+ */
+class SingleClassLoader extends ClassLoader {
+    private final String className;
+    private final byte[] bytes;
+    private Class<?> definedClass;
+
+    SingleClassLoader(ClassLoader parent, String className, byte[] bytes) {
+        super(parent);
+        this.className = className;
+        this.bytes = bytes;
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(className))
+            return super.loadClass(name, resolve);
+
+        if (definedClass == null)
+            definedClass = defineClass(name, bytes, 0, bytes.length);
+        if (resolve)
+            resolveClass(definedClass);
+
+        return definedClass;
+    }
+}
@@ -0,0 +1,66 @@
+package com.husky.benchmark;
+
+import org.husky.AgentOption;
+import org.husky.MonitorMethodCallTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Transforms the classes of a jar one per operation. The default corpus is
+ * the JMH jar itself; pass -p corpus=<jar> to use another one. Run with
+ * -prof gc to get the allocation per transformed class.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformBenchmark {
+    @Param({""})
+    public String corpus;
+
+    @Param({"tree", "stream"})
+    public String engine;
+
+    private MonitorMethodCallTransformer transformer;
+    private List<String> names;
+    private List<byte[]> classes;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File jar = corpus.length() == 0
+                ? new File(Runner.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                : new File(corpus);
+
+        ClassFiles files = ClassFiles.readJar(jar);
+        names = files.names;
+        classes = files.bytes;
+
+        transformer = new MonitorMethodCallTransformer(new AgentOption("engine=" + engine));
+    }
+
+    @Benchmark
+    public byte[] transform() throws Exception {
+        int i = next;
+        next = i + 1 == classes.size() ? 0 : i + 1;
+
+        return transformer.transform(null, names.get(i), null, null, classes.get(i));
+    }
+}
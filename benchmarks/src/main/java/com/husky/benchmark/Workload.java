@@ -0,0 +1,26 @@
+package com.husky.benchmark;
+
+import java.util.function.IntSupplier;
+
+/*
+ * Loaded twice by ProbeOverheadBenchmark: as is, and through the transformer.
+ * Every run makes CALLS instrumented calls.
+ */
+public class Workload implements IntSupplier {
+    public static final int CALLS = 8;
+
+    private int value;
+
+    public int getAsInt() {
+        int sum = 0;
+        for (int i = 0; i < CALLS; i++) {
+            sum += leaf(i);
+        }
+        return sum;
+    }
+
+    private int leaf(int i) {
+        value += i;
+        return value;
+    }
+}
@@ -0,0 +1,206 @@
+package org.husky;
+
+import org.husky.processor.InstrumentProcessor;
+import org.husky.processor.ProcessorMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Transform counters are updated once per class. Event counters live in each
+ * thread's MethodCallContext and are only summed when an attribute is read.
+ * Rates are computed over the interval between two reads that are at least
+ * RATE_INTERVAL apart, so a scraper polling every few seconds gets the rate
+ * over its own polling period.
+ */
+public class AgentMetrics implements AgentMetricsMBean {
+    public static final String OBJECT_NAME = "org.husky:type=AgentMetrics";
+
+    private static final long RATE_INTERVAL = 1000000000L;
+
+    private final AtomicLong transformedClasses = new AtomicLong();
+    private final AtomicLong skippedClasses = new AtomicLong();
+    private final AtomicLong failedClasses = new AtomicLong();
+    private final AtomicLong degradedMethods = new AtomicLong();
+    private final AtomicLong skippedMethods = new AtomicLong();
+    private final AtomicLong transformTime = new AtomicLong();
+    private final AtomicLong maxTransformTime = new AtomicLong();
+
+    private long[] lastEventCounts = new long[MethodCallInstrumenter.EVENT_COUNTS];
+    private long lastRateTime = System.nanoTime();
+    private double[] eventRates = new double[MethodCallInstrumenter.EVENT_COUNTS];
+    private boolean registered = false;
+
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            registered = true;
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+    public void unregister() {
+        if (!registered)
+            return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            registered = false;
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot unregister " + OBJECT_NAME, e);
+        }
+    }
+
+    void classTransformed(long nanos) {
+        transformedClasses.incrementAndGet();
+        transformTime.addAndGet(nanos);
+
+        long max;
+        while (nanos > (max = maxTransformTime.get())) {
+            if (maxTransformTime.compareAndSet(max, nanos))
+                break;
+        }
+    }
+
+    void classSkipped() {
+        skippedClasses.incrementAndGet();
+    }
+
+    void classFailed() {
+        failedClasses.incrementAndGet();
+    }
+
+    void methodDegraded() {
+        degradedMethods.incrementAndGet();
+    }
+
+    void methodSkipped() {
+        skippedMethods.incrementAndGet();
+    }
+
+    public long getTransformedClasses() {
+        return transformedClasses.get();
+    }
+
+    public long getSkippedClasses() {
+        return skippedClasses.get();
+    }
+
+    public long getFailedClasses() {
+        return failedClasses.get();
+    }
+
+    public long getDegradedMethods() {
+        return degradedMethods.get();
+    }
+
+    public long getSkippedMethods() {
+        return skippedMethods.get();
+    }
+
+    public long getTransformTimeNanos() {
+        return transformTime.get();
+    }
+
+    public long getMaxTransformTimeNanos() {
+        return maxTransformTime.get();
+    }
+
+    public int getThreadContexts() {
+        MethodCallInstrumenter instrumenter = MonitorMethodCallTransformer.getInstrumenter();
+        return instrumenter == null ? 0 : instrumenter.getThreadContexts();
+    }
+
+    public int getInstrumentedCallSites() {
+        return CallSiteRegistry.size();
+    }
+
+    public long getCallStartEvents() {
+        return eventCounts()[MethodCallInstrumenter.CALL_START_EVENTS];
+    }
+
+    public long getCallFinishEvents() {
+        return eventCounts()[MethodCallInstrumenter.CALL_FINISH_EVENTS];
+    }
+
+    public long getThrowEvents() {
+        return eventCounts()[MethodCallInstrumenter.THROW_EVENTS];
+    }
+
+    public long getCatchEvents() {
+        return eventCounts()[MethodCallInstrumenter.CATCH_EVENTS];
+    }
+
+    public double getCallStartEventsPerSecond() {
+        return eventRates()[MethodCallInstrumenter.CALL_START_EVENTS];
+    }
+
+    public double getCallFinishEventsPerSecond() {
+        return eventRates()[MethodCallInstrumenter.CALL_FINISH_EVENTS];
+    }
+
+    public double getThrowEventsPerSecond() {
+        return eventRates()[MethodCallInstrumenter.THROW_EVENTS];
+    }
+
+    public double getCatchEventsPerSecond() {
+        return eventRates()[MethodCallInstrumenter.CATCH_EVENTS];
+    }
+
+    public long getGuardDroppedEvents() {
+        return eventCounts()[MethodCallInstrumenter.GUARD_DROPPED_EVENTS];
+    }
+
+    public long getProcessorQueueDepth() {
+        ProcessorMetrics metrics = processorMetrics();
+        return metrics == null ? 0 : metrics.getQueueDepth();
+    }
+
+    public long getBytesWritten() {
+        ProcessorMetrics metrics = processorMetrics();
+        return metrics == null ? 0 : metrics.getBytesWritten();
+    }
+
+    private long[] eventCounts() {
+        MethodCallInstrumenter instrumenter = MonitorMethodCallTransformer.getInstrumenter();
+        return instrumenter == null ? new long[MethodCallInstrumenter.EVENT_COUNTS] : instrumenter.getEventCounts();
+    }
+
+    private synchronized double[] eventRates() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRateTime;
+        if (elapsed < RATE_INTERVAL)
+            return eventRates;
+
+        long[] counts = eventCounts();
+        double[] rates = new double[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            rates[i] = (counts[i] - lastEventCounts[i]) * 1e9 / elapsed;
+        }
+
+        lastEventCounts = counts;
+        lastRateTime = now;
+        eventRates = rates;
+        return rates;
+    }
+
+    private ProcessorMetrics processorMetrics() {
+        MethodCallInstrumenter instrumenter = MonitorMethodCallTransformer.getInstrumenter();
+        if (instrumenter == null)
+            return null;
+
+        InstrumentProcessor processor = instrumenter.getProcessor();
+        return processor instanceof ProcessorMetrics ? (ProcessorMetrics) processor : null;
+    }
+}
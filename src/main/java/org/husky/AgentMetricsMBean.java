@@ -0,0 +1,26 @@
+package org.husky;
+
+public interface AgentMetricsMBean {
+    long getTransformedClasses();
+    long getSkippedClasses();
+    long getFailedClasses();
+    long getDegradedMethods();
+    long getSkippedMethods();
+    long getTransformTimeNanos();
+    long getMaxTransformTimeNanos();
+    int getInstrumentedCallSites();
+    int getThreadContexts();
+
+    long getCallStartEvents();
+    long getCallFinishEvents();
+    long getThrowEvents();
+    long getCatchEvents();
+    double getCallStartEventsPerSecond();
+    double getCallFinishEventsPerSecond();
+    double getThrowEventsPerSecond();
+    double getCatchEventsPerSecond();
+    long getGuardDroppedEvents();
+
+    long getProcessorQueueDepth();
+    long getBytesWritten();
+}
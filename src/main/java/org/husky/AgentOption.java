@@ -10,6 +10,28 @@ public class AgentOption {
     private static final String OUTPUT_TRANSFORMED_CLASS = "outputTransformedClass";
     private static final String TRACE_TRANSFORMED_CLASS = "traceTransformedClass";
     private static final String CHECK_TRANSFORMED_CLASS = "checkTransformedClass";
+    private static final String BUFFER_SIZE = "bufferSize";
+    private static final String BUFFER_FULL_POLICY = "bufferFullPolicy";
+    private static final String SAMPLE_RATE = "sampleRate";
+    private static final String SAMPLE_INTERVAL = "sampleInterval";
+    private static final String INCLUDE = "include";
+    private static final String EXCLUDE = "exclude";
+    private static final String CACHE_DIR = "cacheDir";
+    private static final String ENGINE = "engine";
+    private static final String PROBE = "probe";
+    private static final String DETACH = "detach";
+    private static final String JMX = "jmx";
+    private static final String ASYNC = "async";
+    private static final String BATCH_SIZE = "batchSize";
+    private static final String FLUSH_INTERVAL = "flushInterval";
+    private static final String NO_INSTRUMENT = "noInstrument";
+    private static final String HUGE_METHOD_LIMIT = "hugeMethodLimit";
+    private static final String INLINE_LIMIT = "inlineLimit";
+    private static final String LOG_SINKS = "logSinks";
+    private static final String LOG_COMPRESS = "logCompress";
+    private static final String LOG_ROTATE_SIZE = "logRotateSize";
+    private static final String LOG_ROTATE_INTERVAL = "logRotateInterval";
+    private static final String LOG_RETAIN_SIZE = "logRetainSize";
 
     private boolean debug = false;
     private boolean includeJdkMethod = false;
@@ -20,6 +42,28 @@ public class AgentOption {
     private String outputTransformedClass;
     private String traceTransformedClass;
     private String checkTransformedClass;
+    private int bufferSize = 1 << 20;
+    private String bufferFullPolicy;
+    private int sampleRate = 1;
+    private long sampleInterval = 0;
+    private String include;
+    private String exclude;
+    private String cacheDir;
+    private String engine = MonitorMethodCallTransformer.TREE_ENGINE;
+    private String probe = MonitorMethodCallTransformer.CALL_SITE_PROBE;
+    private boolean detach = false;
+    private boolean jmx = false;
+    private boolean async = false;
+    private int batchSize = 1024;
+    private long flushInterval = 10;
+    private String noInstrument;
+    private int hugeMethodLimit = 8000;
+    private int inlineLimit = 0;
+    private int logSinks = 0;
+    private boolean logCompress = false;
+    private long logRotateSize = 0;
+    private long logRotateInterval = 0;
+    private long logRetainSize = 0;
 
     public AgentOption(String options) {
         if (options != null)
@@ -62,6 +106,103 @@ public class AgentOption {
         return checkTransformedClass;
     }
 
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /*
+     * null unless set: the binary processor then drops events and the async
+     * processor blocks.
+     */
+    public String getBufferFullPolicy() {
+        return bufferFullPolicy;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public String getInclude() {
+        return include;
+    }
+
+    public String getExclude() {
+        return exclude;
+    }
+
+    public String getCacheDir() {
+        return cacheDir;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public String getProbe() {
+        return probe;
+    }
+
+    public boolean isDetach() {
+        return detach;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public String getNoInstrument() {
+        return noInstrument;
+    }
+
+    public int getHugeMethodLimit() {
+        return hugeMethodLimit;
+    }
+
+    public int getInlineLimit() {
+        return inlineLimit;
+    }
+
+    public int getLogSinks() {
+        return logSinks;
+    }
+
+    public boolean isLogCompress() {
+        return logCompress;
+    }
+
+    public long getLogRotateSize() {
+        return logRotateSize;
+    }
+
+    public long getLogRotateInterval() {
+        return logRotateInterval;
+    }
+
+    public long getLogRetainSize() {
+        return logRetainSize;
+    }
+
+    public String getInstrumentationFingerprint() {
+        return engine + ";" + probe + ";" + includeJdkMethod + ";" + captureStart + ";" + captureEnd + ";" +
+                include + ";" + exclude + ";" + noInstrument + ";" + hugeMethodLimit + ";" + inlineLimit;
+    }
+
     private void parse(String options) {
         if (options == null && options.length() == 0)
             return;
@@ -71,6 +212,14 @@ public class AgentOption {
             String part = parts[i];
             if (part.equals(DEBUG)) {
                 debug = true;
+            } else if (part.equals(JMX)) {
+                jmx = true;
+            } else if (part.equals(ASYNC)) {
+                async = true;
+            } else if (part.equals(LOG_COMPRESS)) {
+                logCompress = true;
+            } else if (part.equals(DETACH)) {
+                detach = true;
             } else if (part.equals(INCLUDE_JDK_METHOD)) {
                 includeJdkMethod = true;
             } else if (part.startsWith(THREAD)) {
@@ -87,6 +236,42 @@ public class AgentOption {
                 traceTransformedClass = parseArgumentOption(part);
             } else if (part.startsWith(CHECK_TRANSFORMED_CLASS)) {
                 checkTransformedClass = parseArgumentOption(part);
+            } else if (part.startsWith(BUFFER_SIZE)) {
+                bufferSize = Integer.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(BUFFER_FULL_POLICY)) {
+                bufferFullPolicy = parseArgumentOption(part);
+            } else if (part.startsWith(BATCH_SIZE)) {
+                batchSize = Integer.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(FLUSH_INTERVAL)) {
+                flushInterval = Long.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(SAMPLE_RATE)) {
+                sampleRate = Integer.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(SAMPLE_INTERVAL)) {
+                sampleInterval = Long.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(INCLUDE)) {
+                include = parseArgumentOption(part);
+            } else if (part.startsWith(EXCLUDE)) {
+                exclude = parseArgumentOption(part);
+            } else if (part.startsWith(CACHE_DIR)) {
+                cacheDir = parseArgumentOption(part);
+            } else if (part.startsWith(ENGINE)) {
+                engine = parseArgumentOption(part);
+            } else if (part.startsWith(PROBE)) {
+                probe = parseArgumentOption(part);
+            } else if (part.startsWith(NO_INSTRUMENT)) {
+                noInstrument = parseArgumentOption(part);
+            } else if (part.startsWith(HUGE_METHOD_LIMIT)) {
+                hugeMethodLimit = Integer.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(INLINE_LIMIT)) {
+                inlineLimit = Integer.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(LOG_SINKS)) {
+                logSinks = Integer.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(LOG_ROTATE_SIZE)) {
+                logRotateSize = Long.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(LOG_ROTATE_INTERVAL)) {
+                logRotateInterval = Long.valueOf(parseArgumentOption(part));
+            } else if (part.startsWith(LOG_RETAIN_SIZE)) {
+                logRetainSize = Long.valueOf(parseArgumentOption(part));
             }
         }
     }
@@ -1,10 +1,73 @@
 package org.husky;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
 
 public class CallGraphAgent {
+    private static Instrumentation attachedInstrumentation;
+    private static MonitorMethodCallTransformer attachedTransformer;
+
     public static void premain(String args, Instrumentation instrumentation) {
         AgentOption agentOption = new AgentOption(args);
-        instrumentation.addTransformer(new MonitorMethodCallTransformer(agentOption));
+        MonitorMethodCallTransformer transformer = new MonitorMethodCallTransformer(agentOption);
+        if (agentOption.isJmx())
+            transformer.getMetrics().register();
+        transformer.printSummaryAtExit();
+
+        instrumentation.addTransformer(transformer);
+    }
+
+    /*
+     * Loaded into a running JVM with VirtualMachine.loadAgent(jar, options).
+     * Loading it again with "detach" removes the transformer and retransforms
+     * the classes back to their original bytes, so no probe is left behind,
+     * then closes the transformer, which writes the processor's output and
+     * stops every thread, hook and lock the agent started.
+     * Every load gets its own Instrumentation, the transformer can only be
+     * removed through the one it was added to.
+     */
+    public static synchronized void agentmain(String args, Instrumentation instrumentation)
+            throws UnmodifiableClassException
+    {
+        AgentOption agentOption = new AgentOption(args);
+
+        if (attachedTransformer != null)
+            detach();
+
+        if (agentOption.isDetach())
+            return;
+
+        MonitorMethodCallTransformer transformer = new MonitorMethodCallTransformer(agentOption);
+        transformer.setRetransformLoadedClasses(true);
+        if (agentOption.isJmx())
+            transformer.getMetrics().register();
+        transformer.printSummaryAtExit();
+
+        instrumentation.addTransformer(transformer, true);
+        attachedInstrumentation = instrumentation;
+        attachedTransformer = transformer;
+
+        retransform(instrumentation, transformer.getInstrumentableClasses(instrumentation));
+    }
+
+    private static void detach() throws UnmodifiableClassException {
+        Instrumentation instrumentation = attachedInstrumentation;
+        MonitorMethodCallTransformer transformer = attachedTransformer;
+        attachedInstrumentation = null;
+        attachedTransformer = null;
+
+        instrumentation.removeTransformer(transformer);
+        try {
+            retransform(instrumentation, transformer.getInstrumentableClasses(instrumentation));
+        } finally {
+            transformer.close();
+        }
+    }
+
+    private static void retransform(Instrumentation instrumentation, Class<?>[] classes)
+            throws UnmodifiableClassException
+    {
+        if (classes.length > 0)
+            instrumentation.retransformClasses(classes);
     }
 }
@@ -0,0 +1,87 @@
+package org.husky;
+
+import static org.objectweb.asm.Opcodes.*;
+
+public class CallSite {
+    /* the callee class of an invokedynamic call site */
+    public static final String LAMBDA_OWNER = "__lambda__";
+
+    public final int id;
+
+    public final String callerClass;
+    public final String callerMethod;
+    public final String calleeClass;
+    public final String calleeMethod;
+    public final int opcode;
+    public final int line;
+    public final int methodType;
+
+    public CallSite(int id,
+                    String callerClass,
+                    String callerMethod,
+                    String calleeClass,
+                    String calleeMethod,
+                    int opcode,
+                    int line)
+    {
+        this.id = id;
+        this.callerClass = callerClass;
+        this.callerMethod = callerMethod;
+        this.calleeClass = calleeClass;
+        this.calleeMethod = calleeMethod;
+        this.opcode = opcode;
+        this.line = line;
+        this.methodType = methodType(calleeMethod, opcode);
+    }
+
+    boolean matches(String callerClass,
+                    String callerMethod,
+                    String calleeClass,
+                    String calleeMethod,
+                    int opcode,
+                    int line)
+    {
+        return this.opcode == opcode && this.line == line
+                && this.callerClass.equals(callerClass)
+                && this.callerMethod.equals(callerMethod)
+                && this.calleeClass.equals(calleeClass)
+                && this.calleeMethod.equals(calleeMethod);
+    }
+
+    static int hash(String callerClass,
+                    String callerMethod,
+                    String calleeClass,
+                    String calleeMethod,
+                    int opcode,
+                    int line)
+    {
+        int h = callerClass.hashCode();
+        h = 31 * h + callerMethod.hashCode();
+        h = 31 * h + calleeClass.hashCode();
+        h = 31 * h + calleeMethod.hashCode();
+        h = 31 * h + opcode;
+        return 31 * h + line;
+    }
+
+    private static int methodType(String calleeMethod, int opcode) {
+        if (opcode == MethodCallInstrumenter.ROOT_METHOD)
+            return MethodCallInstrumenter.ROOT_METHOD;
+
+        if ("<init>".equals(calleeMethod))
+            return MethodCallInstrumenter.INIT_METHOD;
+
+        if ("<clinit>".equals(calleeMethod))
+            return MethodCallInstrumenter.CLASS_INIT_METHOD;
+
+        switch (opcode) {
+            case INVOKEVIRTUAL:
+                return MethodCallInstrumenter.INSTANCE_METHOD;
+            case INVOKESTATIC:
+                return MethodCallInstrumenter.STATIC_METHOD;
+            case INVOKEDYNAMIC:
+                return MethodCallInstrumenter.LAMBDA_METHOD;
+            default:
+                return opcode;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.husky;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class CallSiteRegistry {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final HashMap<Integer, ArrayList<CallSite>> buckets =
+            new HashMap<Integer, ArrayList<CallSite>>();
+    private static volatile CallSite[] callSites = new CallSite[INITIAL_CAPACITY];
+    private static volatile int size = 0;
+
+    private CallSiteRegistry() {}
+
+    public static synchronized int register(String callerClass,
+                                            String callerMethod,
+                                            String calleeClass,
+                                            String calleeMethod,
+                                            int opcode,
+                                            int line)
+    {
+        int hash = CallSite.hash(callerClass, callerMethod, calleeClass, calleeMethod, opcode, line);
+        ArrayList<CallSite> bucket = buckets.get(hash);
+        if (bucket == null) {
+            bucket = new ArrayList<CallSite>(1);
+            buckets.put(hash, bucket);
+        } else {
+            for (CallSite callSite : bucket) {
+                if (callSite.matches(callerClass, callerMethod, calleeClass, calleeMethod, opcode, line))
+                    return callSite.id;
+            }
+        }
+
+        int id = size;
+        CallSite callSite = new CallSite(id, callerClass, callerMethod, calleeClass, calleeMethod, opcode, line);
+        bucket.add(callSite);
+
+        CallSite[] sites = callSites;
+        if (id == sites.length) {
+            CallSite[] grown = new CallSite[sites.length << 1];
+            System.arraycopy(sites, 0, grown, 0, sites.length);
+            sites = grown;
+        }
+        sites[id] = callSite;
+
+        callSites = sites;
+        size = id + 1;
+
+        return id;
+    }
+
+    public static int registerRoot(String className, String methodName) {
+        return register(className, methodName, className, methodName, MethodCallInstrumenter.ROOT_METHOD, 0);
+    }
+
+    public static int registerMethod(String className, String methodName, int opcode) {
+        return register(className, methodName, className, methodName, opcode, 0);
+    }
+
+    public static CallSite get(int id) {
+        return callSites[id];
+    }
+
+    public static int size() {
+        return size;
+    }
+}
@@ -0,0 +1,283 @@
+package org.husky;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/*
+ * Instrumented class bytes are stored under a key hashed from the original
+ * class bytes and the instrumentation options. Because the bytes embed
+ * call-site IDs, the call-site table is journaled in the same directory and
+ * replayed into CallSiteRegistry before any class is transformed, so IDs are
+ * stable across runs. Only the JVM holding the directory lock writes to the
+ * cache; other JVMs sharing it only read, and only entries whose call sites
+ * were all in the journal when they replayed it, since any later ID may
+ * belong to a site they registered themselves.
+ */
+public class ClassCache {
+    private static final int ENTRY_MAGIC = 0x48534b43;
+    private static final int ENTRY_VERSION = 2;
+    private static final int ENTRY_HEADER_SIZE = 20;
+    private static final String LOCK_FILE = "cache.lock";
+    private static final String CALL_SITE_FILE = "callsites.dat";
+    private static final String CLASS_DIR = "classes";
+    private static final int MAX_CALL_SITE_RECORD = 1 << 20;
+
+    private final File directory;
+    private final byte[] fingerprint;
+    private final boolean writable;
+
+    private FileLock lock;
+    private DataOutputStream callSiteJournal;
+    private volatile int persistedCallSites = 0;
+
+    public ClassCache(File directory, String fingerprint) throws IOException {
+        this.directory = directory;
+        this.fingerprint = (ENTRY_VERSION + ":" + fingerprint).getBytes(StandardCharsets.UTF_8);
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create cache directory: " + directory);
+
+        FileChannel lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        lock = lockChannel.tryLock();
+        writable = lock != null;
+        if (!writable)
+            lockChannel.close();
+
+        loadCallSites();
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public String key(byte[] classfileBuffer) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(fingerprint);
+        digest.update(classfileBuffer);
+
+        byte[] hash = digest.digest();
+        StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    public byte[] load(String key) {
+        File file = entryFile(key);
+        if (!file.isFile())
+            return null;
+
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                if (size < ENTRY_HEADER_SIZE)
+                    return invalid(file);
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (buffer.getInt() != ENTRY_MAGIC || buffer.getInt() != ENTRY_VERSION)
+                    return invalid(file);
+
+                int callSites = buffer.getInt();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length != size - ENTRY_HEADER_SIZE)
+                    return invalid(file);
+
+                if (callSites > persistedCallSites)
+                    return null;
+
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if ((int) crc.getValue() != checksum)
+                    return invalid(file);
+
+                return bytes;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return invalid(file);
+        }
+    }
+
+    public void store(String key, byte[] bytes) throws IOException {
+        if (!writable)
+            return;
+
+        int callSites = persistCallSites();
+
+        File file = entryFile(key);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create cache directory: " + dir);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+        header.putInt(ENTRY_MAGIC);
+        header.putInt(ENTRY_VERSION);
+        header.putInt(callSites);
+        header.putInt(bytes.length);
+        header.putInt((int) crc.getValue());
+
+        File tmp = File.createTempFile(key, ".tmp", dir);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(header.array());
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("cannot store cache entry: " + file);
+        }
+    }
+
+    /*
+     * Releases the directory lock and the journal, so the directory can be
+     * opened again, by another JVM or by this one when the agent is attached
+     * again. Later stores fail.
+     */
+    public synchronized void close() throws IOException {
+        if (callSiteJournal != null) {
+            callSiteJournal.close();
+            callSiteJournal = null;
+        }
+
+        if (lock != null) {
+            lock.release();
+            lock.channel().close();
+            lock = null;
+        }
+    }
+
+    private synchronized int persistCallSites() throws IOException {
+        if (callSiteJournal == null)
+            throw new IOException("class cache is closed: " + directory);
+
+        int size = CallSiteRegistry.size();
+        for (int i = persistedCallSites; i < size; i++) {
+            CallSite site = CallSiteRegistry.get(i);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeUTF(site.callerClass);
+            record.writeUTF(site.callerMethod);
+            record.writeUTF(site.calleeClass);
+            record.writeUTF(site.calleeMethod);
+            record.writeInt(site.opcode);
+            record.writeInt(site.line);
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+
+            callSiteJournal.writeInt(bytes.size());
+            bytes.writeTo(callSiteJournal);
+            callSiteJournal.writeInt((int) crc.getValue());
+        }
+        callSiteJournal.flush();
+        persistedCallSites = size;
+        return size;
+    }
+
+    private void loadCallSites() throws IOException {
+        File file = new File(directory, CALL_SITE_FILE);
+        long validLength = 0;
+        int replayed = 0;
+
+        if (file.isFile()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_CALL_SITE_RECORD)
+                        break;
+
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    if (in.readInt() != (int) crc.getValue())
+                        break;
+
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+                    String callerClass = record.readUTF();
+                    String callerMethod = record.readUTF();
+                    String calleeClass = record.readUTF();
+                    String calleeMethod = record.readUTF();
+                    int opcode = record.readInt();
+                    int line = record.readInt();
+
+                    // the registry already holds the sites when the agent is attached again
+                    int id = CallSiteRegistry.register(callerClass, callerMethod, calleeClass, calleeMethod, opcode, line);
+                    if (id != replayed)
+                        throw new IOException("call-site journal does not match the registry: " + file);
+
+                    replayed++;
+                    validLength += 8 + length;
+                }
+            } catch (EOFException e) {
+                // a torn last record is cut off below
+            } finally {
+                in.close();
+            }
+        }
+
+        persistedCallSites = replayed;
+
+        if (writable) {
+            RandomAccessFile journal = new RandomAccessFile(file, "rw");
+            try {
+                journal.setLength(validLength);
+            } finally {
+                journal.close();
+            }
+            callSiteJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(new File(new File(directory, CLASS_DIR), key.substring(0, 2)), key.substring(2) + ".class");
+    }
+
+    private byte[] invalid(File file) {
+        if (writable)
+            file.delete();
+        return null;
+    }
+}
@@ -0,0 +1,73 @@
+package org.husky;
+
+import java.util.Arrays;
+
+/*
+ * Per-thread map from (caller frame call site, callee method) to the call
+ * site that describes that edge, used by method-entry probes. Entries are
+ * never removed; a thread only sees the edges it has taken.
+ */
+class EdgeCache {
+    static final int MISSING = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long EMPTY = -1L;
+
+    private long[] keys = newKeys(INITIAL_CAPACITY);
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    int get(int callerCallSite, int method) {
+        long key = key(callerCallSite, method);
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return values[slot];
+        }
+        return MISSING;
+    }
+
+    void put(int callerCallSite, int method, int callSite) {
+        if ((size + 1) * 2 > keys.length)
+            grow();
+
+        insert(keys, values, key(callerCallSite, method), callSite);
+        size++;
+    }
+
+    private void grow() {
+        long[] grownKeys = newKeys(keys.length << 1);
+        int[] grownValues = new int[keys.length << 1];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY)
+                insert(grownKeys, grownValues, keys[i], values[i]);
+        }
+
+        keys = grownKeys;
+        values = grownValues;
+    }
+
+    private static void insert(long[] keys, int[] values, long key, int value) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    private static long key(int callerCallSite, int method) {
+        return ((long) callerCallSite << 32) | (method & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32);
+    }
+
+    private static long[] newKeys(int length) {
+        long[] keys = new long[length];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+}
@@ -1,52 +1,255 @@
 package org.husky;
 
-import java.util.HashMap;
+import java.lang.ref.WeakReference;
 
 public class MethodCallContext {
-    public final int id;
+    private static final int INITIAL_DEPTH = 64;
 
-    public final String className;
-    public final String methodName;
-    public final int methodType;
-    public final int line;
-    public final int depth;
+    private WeakReference<Thread> thread;
+    private long threadId;
+    private String threadName;
 
-    public MethodCallContext prev;
+    private int[] ids = new int[INITIAL_DEPTH];
+    private int[] callSites = new int[INITIAL_DEPTH];
+    private int top = -1;
+    private int nextId = 0;
 
-    private static HashMap<Long, IdGenerator> idGenerators;
+    private Object processorData;
 
-    static {
-        idGenerators = new HashMap<Long, IdGenerator>();
+    boolean instrumenting = false;
+    boolean capturing;
+    int captureNesting = 0;
+    boolean captureCallPending = false;
+    int captureCallDepth;
+    int captureCallNesting;
+    private int[] savedCaptureNesting;
+    private int savedCaptureNestingTop = 0;
+    int skippedDepth = 0;
+    long sampleCount = 0;
+    long nextSampleTime = 0;
+    EdgeCache edges;
+
+    long callStartEvents = 0;
+    long callFinishEvents = 0;
+    long throwEvents = 0;
+    long catchEvents = 0;
+    long guardDroppedEvents = 0;
+
+    /*
+     * Created by ThreadLocal.initialValue, which a probe reaches before its
+     * re-entrancy guard, so nothing is called here; the thread is attached
+     * by the first probe that gets past the guard.
+     */
+    MethodCallContext(boolean capturing) {
+        this.capturing = capturing;
+    }
+
+    void attach(Thread thread) {
+        this.thread = new WeakReference<Thread>(thread);
+        threadId = thread.getId();
+        threadName = thread.getName();
+    }
+
+    boolean isAttached() {
+        return thread != null;
+    }
+
+    /*
+     * A detached context that follows another thread's stack through
+     * replay(), so processors can run away from that thread.
+     */
+    public MethodCallContext(long threadId, String threadName) {
+        this.thread = null;
+        this.threadId = threadId;
+        this.threadName = threadName;
+        this.capturing = true;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public int getDepth() {
+        return top;
+    }
+
+    public int getId() {
+        return ids[top];
+    }
+
+    public int getCallSite() {
+        return callSites[top];
+    }
+
+    public int getMethodType() {
+        return getMethodType(top);
+    }
+
+    public String getClassName() {
+        return getClassName(top);
+    }
+
+    public String getMethodName() {
+        return getMethodName(top);
     }
 
-    private static class IdGenerator {
-        private int id = 0;
+    public int getLine() {
+        return getLine(top);
+    }
+
+    public int getCallerId() {
+        return ids[top - 1];
+    }
+
+    public int getCallerCallSite() {
+        return callSites[top - 1];
+    }
 
-        public int nextId() {
-            return ++id;
+    public String getCallerClassName() {
+        return getClassName(top - 1);
+    }
+
+    public String getCallerMethodName() {
+        return getMethodName(top - 1);
+    }
+
+    public int getId(int depth) {
+        return ids[depth];
+    }
+
+    public int getCallSite(int depth) {
+        return callSites[depth];
+    }
+
+    public int getMethodType(int depth) {
+        return depth == 0 ? MethodCallInstrumenter.ROOT_METHOD : CallSiteRegistry.get(callSites[depth]).methodType;
+    }
+
+    public String getClassName(int depth) {
+        CallSite site = CallSiteRegistry.get(callSites[depth]);
+        return depth == 0 ? site.callerClass : site.calleeClass;
+    }
+
+    public String getMethodName(int depth) {
+        CallSite site = CallSiteRegistry.get(callSites[depth]);
+        return depth == 0 ? site.callerMethod : site.calleeMethod;
+    }
+
+    public int getLine(int depth) {
+        return depth == 0 ? 0 : CallSiteRegistry.get(callSites[depth]).line;
+    }
+
+    public Object getProcessorData() {
+        return processorData;
+    }
+
+    public void setProcessorData(Object processorData) {
+        this.processorData = processorData;
+    }
+
+    public void replay(int depth, int id, int callSite, int callerId, int callerCallSite) {
+        while (depth >= ids.length)
+            grow();
+
+        if (depth > 0) {
+            ids[depth - 1] = callerId;
+            callSites[depth - 1] = callerCallSite;
         }
+        ids[depth] = id;
+        callSites[depth] = callSite;
+        top = depth;
     }
 
-    public MethodCallContext(MethodCallContext callerContext,
-                             String className,
-                             String methodName,
-                             int methodType,
-                             int line) {
-        Long tid = Thread.currentThread().getId();
-        if (callerContext == null) {
-            id = 0;
-            depth = 0;
-            idGenerators.put(tid, new IdGenerator());
-        } else {
-            id = idGenerators.get(tid).nextId();
-            depth = callerContext.depth + 1;
+    /*
+     * The thread is only weakly held, a collected thread counts as ended.
+     */
+    boolean isThreadAlive() {
+        Thread t = thread == null ? null : thread.get();
+        return t != null && t.isAlive();
+    }
+
+    void addEventCounts(long[] counts) {
+        counts[MethodCallInstrumenter.CALL_START_EVENTS] += callStartEvents;
+        counts[MethodCallInstrumenter.CALL_FINISH_EVENTS] += callFinishEvents;
+        counts[MethodCallInstrumenter.THROW_EVENTS] += throwEvents;
+        counts[MethodCallInstrumenter.CATCH_EVENTS] += catchEvents;
+        counts[MethodCallInstrumenter.GUARD_DROPPED_EVENTS] += guardDroppedEvents;
+    }
+
+    boolean isEmpty() {
+        return top < 0;
+    }
+
+    void pushRoot(int callSite) {
+        top = 0;
+        nextId = 0;
+        ids[0] = nextId;
+        callSites[0] = callSite;
+    }
+
+    void push(int callSite) {
+        int depth = top + 1;
+        if (depth == ids.length)
+            grow();
+
+        ids[depth] = ++nextId;
+        callSites[depth] = callSite;
+        top = depth;
+    }
+
+    void clear() {
+        top = -1;
+    }
+
+    boolean pop() {
+        if (top <= 0)
+            return false;
+
+        top--;
+        return true;
+    }
+
+    void restore(int depth) {
+        if (depth < top)
+            top = depth;
+    }
+
+    void pushCaptureNesting(int nesting) {
+        if (savedCaptureNesting == null) {
+            savedCaptureNesting = new int[8];
+        } else if (savedCaptureNestingTop == savedCaptureNesting.length) {
+            int[] grown = new int[savedCaptureNestingTop << 1];
+            System.arraycopy(savedCaptureNesting, 0, grown, 0, savedCaptureNestingTop);
+            savedCaptureNesting = grown;
         }
 
-        prev = callerContext;
+        savedCaptureNesting[savedCaptureNestingTop++] = nesting;
+    }
+
+    /*
+     * -1 when nothing is saved, as after the window was closed from within.
+     */
+    int popCaptureNesting() {
+        return savedCaptureNestingTop > 0 ? savedCaptureNesting[--savedCaptureNestingTop] : -1;
+    }
+
+    void clearCaptureNesting() {
+        savedCaptureNestingTop = 0;
+    }
+
+    private void grow() {
+        int length = ids.length << 1;
+
+        int[] grownIds = new int[length];
+        System.arraycopy(ids, 0, grownIds, 0, ids.length);
+        ids = grownIds;
 
-        this.className = className;
-        this.methodName = methodName;
-        this.methodType = methodType;
-        this.line = line;
+        int[] grownCallSites = new int[length];
+        System.arraycopy(callSites, 0, grownCallSites, 0, callSites.length);
+        callSites = grownCallSites;
     }
 }
@@ -1,12 +1,21 @@
 package org.husky;
 
+import org.husky.processor.AsyncProcessor;
+import org.husky.processor.BinaryProcessor;
+import org.husky.processor.CallingContextTreeProcessor;
+import org.husky.processor.CallGraphProcessor;
+import org.husky.processor.CloseableProcessor;
 import org.husky.processor.InstrumentProcessor;
 import org.husky.processor.LogProcessor;
 import org.husky.processor.NullProcessor;
+import org.husky.processor.ThreadStateProcessor;
+import org.husky.processor.TimingProcessor;
+import org.husky.processor.TraceProcessor;
 
-import java.util.HashMap;
-
-import static org.objectweb.asm.Opcodes.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class MethodCallInstrumenter {
     public static final int ROOT_METHOD = -1;
@@ -16,18 +25,73 @@ public class MethodCallInstrumenter {
     public static final int STATIC_METHOD = 3;
     public static final int LAMBDA_METHOD = 4;
 
-    private HashMap<Long, MethodCallContext> contextStacks = new HashMap<Long, MethodCallContext>();
+    public static final int CALL_START_EVENTS = 0;
+    public static final int CALL_FINISH_EVENTS = 1;
+    public static final int THROW_EVENTS = 2;
+    public static final int CATCH_EVENTS = 3;
+    public static final int GUARD_DROPPED_EVENTS = 4;
+    public static final int EVENT_COUNTS = 5;
+
+    private static final int CALL_START_PROBE = 0;
+    private static final int CAPTURE_START_PROBE = 1;
+    private static final int CAPTURE_END_PROBE = 2;
+    private static final int CALL_FINISH_PROBE = 3;
+    private static final int THROW_PROBE = 4;
+    private static final int CATCH_PROBE = 5;
+    private static final int ENTRY_PROBE = 6;
+    private static final int CAPTURE_ENTRY_PROBE = 7;
+    private static final int EXIT_PROBE = 8;
+    private static final int CAPTURE_EXIT_PROBE = 9;
+    private static final int CONTEXT_PROBE = 10;
+    private static final int CAPTURE_METHOD_ENTRY_PROBE = 11;
+    private static final int CAPTURE_METHOD_EXIT_PROBE = 12;
+    private static final int CAPTURE_THROW_PROBE = 13;
+
+    private static final int NO_CONTEXT = -1;
+    private static final int OUTSIDE_CAPTURE_WINDOW = -2;
+    private static final long RETIRE_INTERVAL_NANOS = 1000000000L;
+    private static final int RETIRE_BATCH = 1024;
+
+    private final ThreadLocal<MethodCallContext> contextStacks = new ThreadLocal<MethodCallContext>() {
+        @Override
+        protected MethodCallContext initialValue() {
+            return new MethodCallContext(instrumentStartPoint == null);
+        }
+    };
+
+    private final ConcurrentLinkedQueue<MethodCallContext> contexts = new ConcurrentLinkedQueue<MethodCallContext>();
+    private final AtomicInteger newContexts = new AtomicInteger();
+    private final long[] retiredEventCounts = new long[EVENT_COUNTS];
+    private final Thread retirer;
+    private volatile boolean running = true;
 
     private boolean instrumentJdkMethod = false;
     private long instrumentThread = 0;
     private String instrumentStartPoint;
     private String instrumentEndPoint;
     private InstrumentProcessor processor;
-
-    private static boolean instrumenting = false;
-
+    private int sampleRate = 1;
+    private long sampleInterval = 0;
+
+    /*
+     * Contexts of ended threads are retired by a background thread every
+     * RETIRE_INTERVAL_NANOS, or sooner after RETIRE_BATCH new threads, so
+     * with short-lived or virtual threads the agent only holds state for
+     * the threads that are alive plus those ended since the last pass.
+     */
     public MethodCallInstrumenter() {
         processor = new NullProcessor();
+
+        retirer = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    LockSupport.parkNanos(RETIRE_INTERVAL_NANOS);
+                    retireThreads();
+                }
+            }
+        }, "husky-thread-retirer");
+        retirer.setDaemon(true);
+        retirer.start();
     }
 
     public void setInstrumentJdkMethod(boolean instrumentJdkMethod) {
@@ -46,178 +110,535 @@ public class MethodCallInstrumenter {
         this.instrumentEndPoint = instrumentEndPoint;
     }
 
-    public void setProcessor(String processorName) {
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1)
+            throw new IllegalArgumentException("sampleRate: " + sampleRate);
+
+        this.sampleRate = sampleRate;
+    }
+
+    public void setSampleInterval(long sampleIntervalMillis) {
+        this.sampleInterval = sampleIntervalMillis * 1000000L;
+    }
+
+    public void setProcessor(AgentOption agentOption) {
+        processor = createProcessor(agentOption);
+
+        if (agentOption.isAsync()) {
+            String policy = agentOption.getBufferFullPolicy();
+            processor = new AsyncProcessor(processor, agentOption.getBufferSize(),
+                    policy != null ? policy : BinaryProcessor.BLOCK_POLICY,
+                    agentOption.getBatchSize(), agentOption.getFlushInterval());
+        }
+    }
+
+    private InstrumentProcessor createProcessor(AgentOption agentOption) {
+        String processorName = agentOption.getProcessor();
+        if (processorName.equals(InstrumentProcessor.NULL_PROCESSOR)) {
+            return new NullProcessor();
+        }
+
         if (processorName.equals(InstrumentProcessor.LOG_PROCESSOR)) {
-            processor = new LogProcessor();
-            return;
+            return new LogProcessor(agentOption.getLogSinks(), agentOption.isLogCompress(),
+                    agentOption.getLogRotateSize(), agentOption.getLogRotateInterval(), agentOption.getLogRetainSize());
+        }
+
+        if (processorName.equals(InstrumentProcessor.BINARY_PROCESSOR)) {
+            String policy = agentOption.getBufferFullPolicy();
+            return new BinaryProcessor(agentOption.getBufferSize(),
+                    policy != null ? policy : BinaryProcessor.DROP_POLICY);
+        }
+
+        if (processorName.equals(InstrumentProcessor.TRACE_PROCESSOR)) {
+            return new TraceProcessor();
+        }
+
+        if (processorName.equals(InstrumentProcessor.CALL_GRAPH_PROCESSOR)) {
+            return new CallGraphProcessor();
+        }
+
+        if (processorName.equals(InstrumentProcessor.TIMING_PROCESSOR)) {
+            return new TimingProcessor();
+        }
+
+        if (processorName.equals(InstrumentProcessor.CALLING_CONTEXT_TREE_PROCESSOR)) {
+            return new CallingContextTreeProcessor();
         }
 
         throw new IllegalArgumentException(processorName);
     }
 
-    public void methodCallStart(String callerClass,
-                                String callerMethod,
-                                String calleeClass,
-                                String calleeMethod,
-                                int opcode,
-                                int line)
-    {
-        if (instrumentJdkMethod) {
-            synchronized (this) {
-                if (instrumenting)
-                    return;
-
-                instrumenting = true;
-                doMethodCallStart(callerClass, callerMethod, calleeClass, calleeMethod, opcode, line);
-                instrumenting = false;
+    public InstrumentProcessor getProcessor() {
+        return processor;
+    }
+
+    /*
+     * Per-thread counters are plain fields written only by their thread, so
+     * the totals read here may lag slightly behind.
+     */
+    public long[] getEventCounts() {
+        long[] counts = new long[EVENT_COUNTS];
+        synchronized (retiredEventCounts) {
+            retireThreads();
+
+            for (MethodCallContext context : contexts) {
+                context.addEventCounts(counts);
+            }
+
+            for (int i = 0; i < EVENT_COUNTS; i++) {
+                counts[i] += retiredEventCounts[i];
             }
-        } else {
-            doMethodCallStart(callerClass, callerMethod, calleeClass, calleeMethod, opcode, line);
         }
+
+        return counts;
     }
 
-    public void methodCallFinish() {
-        if (instrumentJdkMethod) {
-            synchronized (this) {
-                if (instrumenting)
-                    return;
-
-                instrumenting = true;
-                doMethodCallFinish();
-                instrumenting = false;
+    public int getThreadContexts() {
+        return contexts.size();
+    }
+
+    /*
+     * Called when the agent detaches. Probes in code that is not yet
+     * retransformed only reach a NullProcessor from here on, so every
+     * context can be retired as if its thread had ended before the
+     * processor is closed.
+     */
+    public void close() {
+        InstrumentProcessor closing = processor;
+        processor = new NullProcessor();
+
+        running = false;
+        LockSupport.unpark(retirer);
+        try {
+            retirer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        retireThreads(closing, true);
+
+        if (closing instanceof CloseableProcessor)
+            ((CloseableProcessor) closing).close();
+    }
+
+    void retireThreads() {
+        retireThreads(processor, false);
+    }
+
+    private void register(MethodCallContext context) {
+        context.attach(Thread.currentThread());
+        contexts.add(context);
+        if (newContexts.incrementAndGet() >= RETIRE_BATCH)
+            LockSupport.unpark(retirer);
+    }
+
+    /*
+     * Folds the counters of contexts whose thread has ended, or of all with
+     * all, into the retired totals, lets the processor release its state for
+     * them and drops them.
+     */
+    private void retireThreads(InstrumentProcessor processor, boolean all) {
+        synchronized (retiredEventCounts) {
+            newContexts.set(0);
+
+            Iterator<MethodCallContext> iterator = contexts.iterator();
+            while (iterator.hasNext()) {
+                MethodCallContext context = iterator.next();
+                if (!all && context.isThreadAlive())
+                    continue;
+
+                iterator.remove();
+                context.addEventCounts(retiredEventCounts);
+
+                if (processor instanceof ThreadStateProcessor) {
+                    try {
+                        ((ThreadStateProcessor) processor).retireThread(context);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
             }
-        } else {
-            doMethodCallFinish();
         }
     }
 
+    public void methodCallStart(int callSite) {
+        probe(CALL_START_PROBE, callSite);
+    }
+
+    public void methodCaptureStart(int callSite) {
+        probe(CAPTURE_START_PROBE, callSite);
+    }
+
+    public void methodCaptureEnd() {
+        probe(CAPTURE_END_PROBE, 0);
+    }
+
+    public void methodCallFinish() {
+        probe(CALL_FINISH_PROBE, 0);
+    }
+
     public void methodThrowException() {
-        if (instrumentJdkMethod) {
-            synchronized (this) {
-                if (instrumenting)
-                    return;
-
-                instrumenting = true;
-                doMethodThrowException();
-                instrumenting = false;
-            }
-        } else {
-            doMethodThrowException();
+        probe(THROW_PROBE, 0);
+    }
+
+    public void methodCatchException(int depth) {
+        probe(CATCH_PROBE, depth);
+    }
+
+    public void methodEntry(int method) {
+        probe(ENTRY_PROBE, method);
+    }
+
+    public void methodCaptureEntry(int method) {
+        probe(CAPTURE_ENTRY_PROBE, method);
+    }
+
+    public void methodExit() {
+        probe(EXIT_PROBE, 0);
+    }
+
+    public void methodCaptureExit() {
+        probe(CAPTURE_EXIT_PROBE, 0);
+    }
+
+    public void methodCaptureMethodEntry() {
+        probe(CAPTURE_METHOD_ENTRY_PROBE, 0);
+    }
+
+    public void methodCaptureMethodExit() {
+        probe(CAPTURE_METHOD_EXIT_PROBE, 0);
+    }
+
+    public void methodCaptureThrow() {
+        probe(CAPTURE_THROW_PROBE, 0);
+    }
+
+    public int getOrCreateCurrentCallContext(int rootCallSite) {
+        return probe(CONTEXT_PROBE, rootCallSite);
+    }
+
+    /*
+     * The common path of every probe. Outside a capture window only the
+     * probes that can open one run. With instrumentJdkMethod the JDK code
+     * the agent itself calls is instrumented too, so a probe reached again
+     * from inside a probe on the same thread is dropped and counted instead.
+     * Only ThreadLocal.get runs before that guard, and the transformer never
+     * instruments ThreadLocal or java.lang.ref.
+     */
+    private int probe(int probe, int argument) {
+        MethodCallContext context = contextStacks.get();
+        if (!context.capturing && probe != CAPTURE_START_PROBE && probe != CAPTURE_ENTRY_PROBE &&
+                probe != CAPTURE_METHOD_ENTRY_PROBE)
+            return OUTSIDE_CAPTURE_WINDOW;
+
+        if (!instrumentJdkMethod)
+            return dispatch(context, probe, argument);
+
+        if (context.instrumenting) {
+            context.guardDroppedEvents++;
+            return NO_CONTEXT;
+        }
+
+        context.instrumenting = true;
+        try {
+            return dispatch(context, probe, argument);
+        } finally {
+            context.instrumenting = false;
         }
     }
 
-    public void methodCatchException(MethodCallContext context) {
-        if (instrumentJdkMethod) {
-            synchronized (this) {
-                if (instrumenting)
-                    return;
+    private int dispatch(MethodCallContext context, int probe, int argument) {
+        if (!context.isAttached())
+            register(context);
+
+        switch (probe) {
+            case CALL_START_PROBE:
+                doMethodCallStart(context, argument);
+                break;
+            case CAPTURE_START_PROBE:
+                doMethodCaptureStart(context, argument);
+                break;
+            case CAPTURE_END_PROBE:
+                doMethodCaptureEnd(context);
+                break;
+            case CALL_FINISH_PROBE:
+                doMethodCallFinish(context);
+                break;
+            case THROW_PROBE:
+                doMethodThrowException(context);
+                break;
+            case CATCH_PROBE:
+                doMethodCatchException(context, argument);
+                break;
+            case ENTRY_PROBE:
+                doMethodEntry(context, argument);
+                break;
+            case CAPTURE_ENTRY_PROBE:
+                doMethodCaptureEntry(context, argument);
+                break;
+            case EXIT_PROBE:
+                doMethodExit(context);
+                break;
+            case CAPTURE_EXIT_PROBE:
+                doMethodCaptureExit(context);
+                break;
+            case CAPTURE_METHOD_ENTRY_PROBE:
+                openCaptureWindow(context);
+                break;
+            case CAPTURE_METHOD_EXIT_PROBE:
+                doMethodCaptureMethodExit(context);
+                break;
+            case CAPTURE_THROW_PROBE:
+                doMethodCaptureThrow(context);
+                break;
+            case CONTEXT_PROBE:
+                return currentDepth(context, argument);
+        }
+        return 0;
+    }
 
-                instrumenting = true;
-                doMethodCatchException(context);
-                instrumenting = false;
-            }
-        } else {
-            doMethodCatchException(context);
+    private boolean shouldInstrument(MethodCallContext context) {
+        return instrumentThread == 0 || context.getThreadId() == instrumentThread;
+    }
+
+    private boolean shouldSample(MethodCallContext context) {
+        if (sampleRate > 1 && context.sampleCount++ % sampleRate != 0)
+            return false;
+
+        if (sampleInterval > 0) {
+            long now = System.nanoTime();
+            if (now - context.nextSampleTime < 0)
+                return false;
+
+            context.nextSampleTime = now + sampleInterval;
         }
+
+        return true;
     }
 
-    public MethodCallContext getOrCreateCurrentCallContext(String className, String methodName) {
-        if (instrumentJdkMethod) {
-            synchronized (this) {
-                if (instrumenting)
-                    return null;
+    private void doMethodCallStart(MethodCallContext context, int callSite) {
+        if (context.skippedDepth > 0) {
+            context.skippedDepth++;
+            return;
+        }
+
+        contextStackTop(context, callSite);
 
-                instrumenting = true;
-                MethodCallContext context = contextStackTop(className, methodName);
-                instrumenting = false;
+        if (context.getDepth() == 0 && !shouldSample(context)) {
+            context.skippedDepth = 1;
+            return;
+        }
 
-                return context;
-            }
-        } else {
-            return contextStackTop(className, methodName);
+        context.push(callSite);
+
+        if (shouldInstrument(context)) {
+            context.callStartEvents++;
+            processor.processCallStart(context);
         }
     }
 
-    private boolean shouldInstrument(Long tid) {
-        return instrumentThread == 0 || tid == instrumentThread;
+    /*
+     * A call site whose static owner is the capture method opens the window
+     * here, before the callee's own entry probe, which then has to know how
+     * deep the window was before this call if the callee throws.
+     */
+    private void doMethodCaptureStart(MethodCallContext context, int callSite) {
+        int nesting = context.capturing ? context.captureNesting : 0;
+        if (context.capturing) {
+            context.captureNesting++;
+        } else {
+            context.capturing = true;
+            context.captureNesting = 1;
+        }
+
+        doMethodCallStart(context, callSite);
+
+        context.captureCallPending = true;
+        context.captureCallDepth = context.getDepth();
+        context.captureCallNesting = nesting;
     }
 
-    private void doMethodCallStart(String callerClass,
-                                   String callerMethod,
-                                   String calleeClass,
-                                   String calleeMethod,
-                                   int opcode,
-                                   int line)
-    {
-        Thread thread = Thread.currentThread();
-        Long tid = thread.getId();
+    private void doMethodCaptureEnd(MethodCallContext context) {
+        context.captureCallPending = false;
+        doMethodCallFinish(context);
 
-        MethodCallContext callerContext, calleeContext;
-        callerContext = contextStackTop(tid, callerClass, callerMethod);
+        if (--context.captureNesting <= 0)
+            closeCaptureWindow(context);
+    }
 
-        int methodType;
-        if ("<init>".equals(calleeMethod)) {
-            methodType = INIT_METHOD;
-        } else if ("<cinit>".equals(calleeMethod)) {
-            methodType = CLASS_INIT_METHOD;
+    /*
+     * The callee side of a window, reached however the capture method is
+     * called: through an uninstrumented or filtered caller, an interface or
+     * superclass owner, or reflection. With call-site probes the stack is
+     * left alone, so a window opened here is rooted at the capture method by
+     * its first call site. The nesting the window goes back to if the method
+     * throws is saved on the context, including the level its own call site
+     * added when one did.
+     */
+    private void openCaptureWindow(MethodCallContext context) {
+        int saved;
+        if (!context.capturing) {
+            saved = 0;
+            context.capturing = true;
+            context.captureNesting = 1;
+        } else if (context.captureCallPending && context.captureCallDepth == context.getDepth()) {
+            saved = context.captureCallNesting;
+            context.captureNesting++;
         } else {
-            switch (opcode) {
-                case INVOKEVIRTUAL:
-                    methodType = INSTANCE_METHOD;
-                    break;
-                case INVOKESTATIC:
-                    methodType = STATIC_METHOD;
-                    break;
-                case INVOKEDYNAMIC:
-                    methodType = LAMBDA_METHOD;
-                    break;
-                default:
-                    methodType = opcode;
-            }
+            saved = context.captureNesting;
+            context.captureNesting++;
         }
 
-        calleeContext = new MethodCallContext(callerContext, calleeClass, calleeMethod, methodType, line);
-        contextStacks.put(tid, calleeContext);
+        context.captureCallPending = false;
+        context.pushCaptureNesting(saved);
+    }
 
-        if (shouldInstrument(tid))
-            processor.processCallStart(calleeContext);
+    private void doMethodCaptureMethodExit(MethodCallContext context) {
+        context.popCaptureNesting();
+
+        if (--context.captureNesting <= 0)
+            closeCaptureWindow(context);
     }
 
-    private void doMethodCallFinish() {
-        Long tid = Thread.currentThread().getId();
-        MethodCallContext context = contextStacks.get(tid);
-        contextStacks.put(tid, context.prev);
+    /*
+     * An exception leaving the capture method skips its exit probe and the
+     * finish probe of the call site that called it, so the window goes back
+     * to the nesting saved on entry and closes if that was none. The stack
+     * is left to the catch that handles the exception, if instrumented.
+     */
+    private void doMethodCaptureThrow(MethodCallContext context) {
+        int saved = context.popCaptureNesting();
+        if (saved < 0)
+            saved = context.captureNesting - 1;
+
+        if (saved <= 0)
+            closeCaptureWindow(context);
+        else
+            context.captureNesting = saved;
+    }
 
-        if (shouldInstrument(tid))
+    private void closeCaptureWindow(MethodCallContext context) {
+        context.capturing = false;
+        context.captureNesting = 0;
+        context.captureCallPending = false;
+        context.clearCaptureNesting();
+        context.skippedDepth = 0;
+        context.clear();
+    }
+
+    private void doMethodCallFinish(MethodCallContext context) {
+        if (context.skippedDepth > 0) {
+            context.skippedDepth--;
+            return;
+        }
+
+        if (context.getDepth() <= 0)
+            return;
+
+        if (shouldInstrument(context)) {
+            context.callFinishEvents++;
             processor.processCallFinish(context);
+        }
+
+        context.pop();
     }
 
-    private void doMethodThrowException() {
-        Long tid = Thread.currentThread().getId();
-        MethodCallContext context = contextStacks.get(tid);
+    /*
+     * Method-entry probes only know the method being entered. The first
+     * method entered on an empty stack becomes the root, like the caller of
+     * the first call site does; any other entry is a call from the method on
+     * top of the stack, resolved to a call site through the thread's edge
+     * cache. The root leaving empties the stack for the next one.
+     */
+    private void doMethodEntry(MethodCallContext context, int method) {
+        if (context.skippedDepth > 0) {
+            context.skippedDepth++;
+            return;
+        }
+
+        if (context.isEmpty()) {
+            context.pushRoot(method);
+            return;
+        }
+
+        doMethodCallStart(context, callerEdge(context, method));
+    }
+
+    private void doMethodCaptureEntry(MethodCallContext context, int method) {
+        openCaptureWindow(context);
+        doMethodEntry(context, method);
+    }
+
+    private void doMethodExit(MethodCallContext context) {
+        if (context.skippedDepth == 0 && context.getDepth() == 0) {
+            context.clear();
+            return;
+        }
+
+        doMethodCallFinish(context);
+    }
 
-        if (shouldInstrument(tid))
+    private void doMethodCaptureExit(MethodCallContext context) {
+        doMethodExit(context);
+        context.popCaptureNesting();
+
+        if (--context.captureNesting <= 0)
+            closeCaptureWindow(context);
+    }
+
+    private int callerEdge(MethodCallContext context, int method) {
+        if (context.edges == null)
+            context.edges = new EdgeCache();
+
+        int caller = context.getCallSite();
+        int callSite = context.edges.get(caller, method);
+        if (callSite == EdgeCache.MISSING) {
+            CallSite callee = CallSiteRegistry.get(method);
+            callSite = CallSiteRegistry.register(context.getClassName(), context.getMethodName(),
+                    callee.calleeClass, callee.calleeMethod, callee.opcode, 0);
+            context.edges.put(caller, method, callSite);
+        }
+
+        return callSite;
+    }
+
+    private void doMethodThrowException(MethodCallContext context) {
+        if (context.skippedDepth > 0 || context.isEmpty())
+            return;
+
+        if (shouldInstrument(context)) {
+            context.throwEvents++;
             processor.processThrowException(context);
+        }
     }
 
-    private void doMethodCatchException(MethodCallContext context) {
-        Long tid = Thread.currentThread().getId();
-        contextStacks.put(tid, context);
+    private void doMethodCatchException(MethodCallContext context, int depth) {
+        if (depth == OUTSIDE_CAPTURE_WINDOW)
+            closeCaptureWindow(context);
+
+        if (depth < 0)
+            return;
 
-        if (shouldInstrument(tid))
+        if (context.skippedDepth > 0) {
+            context.skippedDepth = Math.max(depth - context.getDepth(), 0);
+            return;
+        }
+
+        context.restore(depth);
+
+        if (shouldInstrument(context)) {
+            context.catchEvents++;
             processor.processCatchException(context);
+        }
     }
 
-    private MethodCallContext contextStackTop(String className, String methodName) {
-        return contextStackTop(Thread.currentThread().getId(), className, methodName);
+    private int currentDepth(MethodCallContext context, int rootCallSite) {
+        return contextStackTop(context, rootCallSite).getDepth() + context.skippedDepth;
     }
 
-    private MethodCallContext contextStackTop(Long tid, String className, String methodName) {
-        MethodCallContext context;
-        if ((context = contextStacks.get(tid)) == null) {
-            context = new MethodCallContext(null, className, methodName, ROOT_METHOD, 0);
-            contextStacks.put(tid, context);
-        }
+    private MethodCallContext contextStackTop(MethodCallContext context, int callSite) {
+        if (context.isEmpty())
+            context.pushRoot(callSite);
 
         return context;
     }
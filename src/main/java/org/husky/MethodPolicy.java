@@ -0,0 +1,353 @@
+package org.husky;
+
+import org.objectweb.asm.ClassReader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/*
+ * Decides before a class is instrumented how much of each method gets
+ * probes, so the agent does not move a method across a HotSpot compile
+ * threshold: a method at or under hugeMethodLimit (HotSpot's HugeMethodLimit,
+ * 8000 bytes) that would grow over it is never compiled, one at or under
+ * inlineLimit (e.g. FreqInlineSize 325 or MaxInlineSize 35, off by default)
+ * stops being inlined, and one over 65535 bytes cannot be written at all.
+ *
+ * The original code length and the exception table are read from the Code
+ * attribute; the instrumented length is an upper estimate from the
+ * instructions that get probes. A method that would cross a limit, or that
+ * is opted out through noInstrument patterns or a NoInstrument annotation
+ * (any package) on it or its class, is degraded to only the catch-depth
+ * restore when it has typed handlers and that still fits, so the stack stays
+ * right when an exception from instrumented callees is caught there, and is
+ * skipped otherwise. JDK intrinsic and force-inline methods are opted out
+ * too.
+ */
+public class MethodPolicy {
+    public static final int INSTRUMENT = 0;
+    public static final int DEGRADE = 1;
+    public static final int SKIP = 2;
+
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final String OPT_OUT_ANNOTATION = "NoInstrument;";
+    private static final String[] OPT_OUT_ANNOTATIONS = {
+            "Ljdk/internal/HotSpotIntrinsicCandidate;",
+            "Ljdk/internal/vm/annotation/IntrinsicCandidate;",
+            "Ljdk/internal/vm/annotation/ForceInline;"
+    };
+
+    /* upper bounds of the bytes each probe adds */
+    private static final int PUSH_INT_SIZE = 3;
+    private static final int INVOKE_SIZE = 3;
+    private static final int VAR_INSN_SIZE = 4;
+    private static final int CALL_PROBE_SIZE = PUSH_INT_SIZE + 2 * INVOKE_SIZE;
+    private static final int ENTRY_PROBE_SIZE = PUSH_INT_SIZE + INVOKE_SIZE;
+    private static final int CONTEXT_PROBE_SIZE = PUSH_INT_SIZE + INVOKE_SIZE + VAR_INSN_SIZE;
+    private static final int CATCH_PROBE_SIZE = VAR_INSN_SIZE + INVOKE_SIZE;
+    /* a switch moved by the probes before it can need up to 3 more padding bytes */
+    private static final int SWITCH_PADDING = 3;
+    /* the constant pool is rebuilt, so an ldc may become an ldc_w */
+    private static final int LDC_WIDENING = 1;
+
+    private final PrefixFilter filter;
+    private final PrefixFilter optOuts;
+    private final boolean entryProbes;
+    private final int hugeMethodLimit;
+    private final int inlineLimit;
+
+    public MethodPolicy(AgentOption agentOption, PrefixFilter filter, boolean entryProbes) {
+        List<String> patterns = PrefixFilter.parsePatterns(agentOption.getNoInstrument());
+
+        this.filter = filter;
+        this.optOuts = patterns.isEmpty() ? null : new PrefixFilter(patterns, new ArrayList<String>());
+        this.entryProbes = entryProbes;
+        this.hugeMethodLimit = agentOption.getHugeMethodLimit();
+        this.inlineLimit = agentOption.getInlineLimit();
+    }
+
+    /*
+     * Returns the decision for every method with code, keyed by name +
+     * descriptor.
+     */
+    public Map<String, CodeInfo> decide(ClassReader cr) {
+        Map<String, CodeInfo> methods = new HashMap<String, CodeInfo>();
+        char[] buf = new char[cr.getMaxStringLength()];
+        String className = cr.getClassName();
+
+        int u = cr.header + 6;
+        u += 2 + 2 * cr.readUnsignedShort(u);
+
+        int fields = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < fields; i++) {
+            u = skipAttributes(cr, u + 6);
+        }
+
+        int count = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < count; i++) {
+            String name = cr.readUTF8(u + 2, buf);
+            String descriptor = cr.readUTF8(u + 4, buf);
+            CodeInfo info = null;
+            boolean optOut = false;
+
+            int attributes = cr.readUnsignedShort(u + 6);
+            u += 8;
+            for (int j = 0; j < attributes; j++) {
+                String attribute = cr.readUTF8(u, buf);
+                int length = cr.readInt(u + 2);
+                if ("Code".equals(attribute)) {
+                    info = readCode(cr, u + 6, name, buf);
+                } else if (isAnnotations(attribute)) {
+                    optOut |= hasOptOutAnnotation(cr, u + 6, buf);
+                }
+                u += 6 + length;
+            }
+
+            if (info != null) {
+                info.optOut = optOut;
+                methods.put(name + descriptor, info);
+            }
+        }
+
+        boolean classOptOut = false;
+        int attributes = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < attributes; i++) {
+            if (isAnnotations(cr.readUTF8(u, buf)))
+                classOptOut |= hasOptOutAnnotation(cr, u + 6, buf);
+            u += 6 + cr.readInt(u + 2);
+        }
+
+        for (CodeInfo info : methods.values()) {
+            decide(info, className, classOptOut);
+        }
+
+        return methods;
+    }
+
+    private void decide(CodeInfo info, String className, boolean classOptOut) {
+        if (entryProbes && !filter.acceptMethod(className, info.name)) {
+            info.action = SKIP;
+            return;
+        }
+
+        if (classOptOut || info.optOut) {
+            info.reason = "annotation";
+        } else if (optOuts != null && optOuts.acceptMethod(className, info.name)) {
+            info.reason = "noInstrument";
+        } else {
+            info.reason = crossedLimit(info.codeLength, info.codeLength + info.probeSize);
+            if (info.reason == null) {
+                info.action = INSTRUMENT;
+                return;
+            }
+        }
+
+        int degradedSize = info.hasExceptionHandler
+                ? info.codeLength + CONTEXT_PROBE_SIZE + info.handlers * CATCH_PROBE_SIZE
+                : info.codeLength;
+        info.action = info.hasExceptionHandler && crossedLimit(info.codeLength, degradedSize) == null
+                ? DEGRADE : SKIP;
+    }
+
+    private String crossedLimit(int codeLength, int size) {
+        if (size > MAX_CODE_LENGTH)
+            return "codeLength";
+        if (hugeMethodLimit > 0 && codeLength <= hugeMethodLimit && size > hugeMethodLimit)
+            return "hugeMethodLimit";
+        if (inlineLimit > 0 && codeLength <= inlineLimit && size > inlineLimit)
+            return "inlineLimit";
+        return null;
+    }
+
+    private CodeInfo readCode(ClassReader cr, int u, String name, char[] buf) {
+        CodeInfo info = new CodeInfo(name);
+        info.maxLocals = cr.readUnsignedShort(u + 2);
+        info.codeLength = cr.readInt(u + 4);
+
+        int code = u + 8;
+        int exceptionTable = code + info.codeLength;
+        int entries = cr.readUnsignedShort(exceptionTable);
+        for (int k = 0; k < entries; k++) {
+            if (cr.readUnsignedShort(exceptionTable + 2 + k * 8 + 6) != 0)
+                info.handlers++;
+        }
+        info.hasExceptionHandler = info.handlers > 0;
+
+        int probeSize = info.hasExceptionHandler ? CONTEXT_PROBE_SIZE + info.handlers * CATCH_PROBE_SIZE : 0;
+        if (entryProbes && info.codeLength > 0)
+            probeSize += ENTRY_PROBE_SIZE;
+
+        int pc = 0;
+        while (pc < info.codeLength) {
+            int opcode = cr.readByte(code + pc);
+            if (opcode == ATHROW) {
+                probeSize += INVOKE_SIZE;
+            } else if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+                probeSize += SWITCH_PADDING;
+            } else if (opcode == LDC) {
+                probeSize += LDC_WIDENING;
+            } else if (entryProbes) {
+                if (opcode >= IRETURN && opcode <= RETURN)
+                    probeSize += INVOKE_SIZE;
+            } else if (opcode == INVOKEDYNAMIC) {
+                probeSize += CALL_PROBE_SIZE;
+            } else if (opcode >= INVOKEVIRTUAL && opcode <= INVOKEINTERFACE) {
+                int ref = cr.getItem(cr.readUnsignedShort(code + pc + 1));
+                String owner = cr.readClass(ref, buf);
+                String callee = cr.readUTF8(cr.getItem(cr.readUnsignedShort(ref + 2)), buf);
+                if (!owner.startsWith("org/husky/") && filter.acceptMethod(owner, callee))
+                    probeSize += CALL_PROBE_SIZE;
+            }
+            pc += insnLength(cr, code, pc, opcode);
+        }
+
+        info.probeSize = probeSize;
+        return info;
+    }
+
+    private static int insnLength(ClassReader cr, int code, int pc, int opcode) {
+        switch (opcode) {
+            case BIPUSH:
+            case LDC:
+            case ILOAD: case LLOAD: case FLOAD: case DLOAD: case ALOAD:
+            case ISTORE: case LSTORE: case FSTORE: case DSTORE: case ASTORE:
+            case RET:
+            case NEWARRAY:
+                return 2;
+            case SIPUSH:
+            case 19: // LDC_W
+            case 20: // LDC2_W
+            case IINC:
+            case GETSTATIC: case PUTSTATIC: case GETFIELD: case PUTFIELD:
+            case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKESTATIC:
+            case NEW: case ANEWARRAY: case CHECKCAST: case INSTANCEOF:
+                return 3;
+            case MULTIANEWARRAY:
+                return 4;
+            case INVOKEINTERFACE:
+            case INVOKEDYNAMIC:
+            case 200: // GOTO_W
+            case 201: // JSR_W
+                return 5;
+            case 196: // WIDE
+                return cr.readByte(code + pc + 1) == IINC ? 6 : 4;
+            case TABLESWITCH: {
+                int u = code + pc + 4 - (pc & 3);
+                return u - code - pc + 12 + 4 * (cr.readInt(u + 8) - cr.readInt(u + 4) + 1);
+            }
+            case LOOKUPSWITCH: {
+                int u = code + pc + 4 - (pc & 3);
+                return u - code - pc + 8 + 8 * cr.readInt(u + 4);
+            }
+            default:
+                if ((opcode >= IFEQ && opcode <= JSR) || opcode == IFNULL || opcode == IFNONNULL)
+                    return 3;
+                return 1;
+        }
+    }
+
+    private static boolean isAnnotations(String attribute) {
+        return "RuntimeVisibleAnnotations".equals(attribute) || "RuntimeInvisibleAnnotations".equals(attribute);
+    }
+
+    private static boolean hasOptOutAnnotation(ClassReader cr, int u, char[] buf) {
+        int annotations = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < annotations; i++) {
+            String type = cr.readUTF8(u, buf);
+            if (isOptOutAnnotation(type))
+                return true;
+            u = skipAnnotation(cr, u);
+        }
+        return false;
+    }
+
+    private static boolean isOptOutAnnotation(String type) {
+        if (type.endsWith(OPT_OUT_ANNOTATION)
+                && (type.length() == OPT_OUT_ANNOTATION.length() + 1
+                || type.charAt(type.length() - OPT_OUT_ANNOTATION.length() - 1) == '/'
+                || type.charAt(type.length() - OPT_OUT_ANNOTATION.length() - 1) == '$'))
+            return true;
+
+        for (String annotation : OPT_OUT_ANNOTATIONS) {
+            if (annotation.equals(type))
+                return true;
+        }
+        return false;
+    }
+
+    private static int skipAnnotation(ClassReader cr, int u) {
+        int pairs = cr.readUnsignedShort(u + 2);
+        u += 4;
+        for (int i = 0; i < pairs; i++) {
+            u = skipElementValue(cr, u + 2);
+        }
+        return u;
+    }
+
+    private static int skipElementValue(ClassReader cr, int u) {
+        switch (cr.readByte(u)) {
+            case 'e':
+                return u + 5;
+            case '@':
+                return skipAnnotation(cr, u + 1);
+            case '[': {
+                int values = cr.readUnsignedShort(u + 1);
+                u += 3;
+                for (int i = 0; i < values; i++) {
+                    u = skipElementValue(cr, u);
+                }
+                return u;
+            }
+            default:
+                return u + 3;
+        }
+    }
+
+    private static int skipAttributes(ClassReader cr, int u) {
+        int attributes = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < attributes; i++) {
+            u += 6 + cr.readInt(u + 2);
+        }
+        return u;
+    }
+
+    public static class CodeInfo {
+        public final String name;
+        int maxLocals;
+        int codeLength;
+        int probeSize;
+        int handlers;
+        boolean hasExceptionHandler;
+        boolean optOut;
+        int action;
+        String reason;
+
+        CodeInfo(String name) {
+            this.name = name;
+        }
+
+        public int getAction() {
+            return action;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public int getCodeLength() {
+            return codeLength;
+        }
+
+        public int getInstrumentedLength() {
+            return codeLength + probeSize;
+        }
+    }
+}
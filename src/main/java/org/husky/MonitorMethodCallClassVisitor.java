@@ -0,0 +1,456 @@
+package org.husky;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/*
+ * Single-pass counterpart of MonitorMethodCallTransformer.injectInspector.
+ * The only facts the tree engine needs from the whole method (max_locals and
+ * whether a typed exception handler exists) are read from the Code attribute
+ * before the class is visited, everything else is decided as instructions
+ * stream by. The start probe of a constructor call is emitted at its NEW.
+ * With entry probes, call sites are left alone and each method reports its
+ * own entry and returns instead. A method the MethodPolicy degrades only
+ * gets the catch-depth restore. The catch-all handler of a capture method
+ * is declared at its first label or instruction, after the method's own
+ * handlers, so it comes last in the exception table.
+ */
+public class MonitorMethodCallClassVisitor extends ClassVisitor {
+    private static final String TRANSFORMER_CLASS = "org/husky/MonitorMethodCallTransformer";
+
+    private final PrefixFilter filter;
+    private final String captureStartMethod;
+    private final String captureEndMethod;
+    private final boolean entryProbes;
+    private final Map<String, MethodPolicy.CodeInfo> methods;
+
+    private String className;
+    private boolean frames;
+
+    public MonitorMethodCallClassVisitor(ClassVisitor cv,
+                                         Map<String, MethodPolicy.CodeInfo> methods,
+                                         PrefixFilter filter,
+                                         String captureStartMethod,
+                                         String captureEndMethod,
+                                         boolean entryProbes)
+    {
+        super(ASM7, cv);
+        this.filter = filter;
+        this.captureStartMethod = captureStartMethod;
+        this.captureEndMethod = captureEndMethod;
+        this.entryProbes = entryProbes;
+        this.methods = methods;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        className = name;
+        frames = (version & 0xffff) >= V1_6;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        MethodPolicy.CodeInfo info = methods.get(name + descriptor);
+        if (mv == null || info == null || info.action == MethodPolicy.SKIP)
+            return mv;
+
+        return new MonitorMethodCallMethodVisitor(mv, access, name, info.maxLocals, info.hasExceptionHandler,
+                info.action == MethodPolicy.INSTRUMENT);
+    }
+
+    private class MonitorMethodCallMethodVisitor extends MethodVisitor {
+        private final int access;
+        private final String methodName;
+        private final int entryLocal;
+        private final boolean hasExceptionHandler;
+        private final boolean probes;
+        private final boolean captureEntry;
+        private final boolean captureExit;
+
+        private final Map<Label, Integer> handlers = new HashMap<Label, Integer>();
+        private final ArrayList<Label> pendingLabels = new ArrayList<Label>();
+        private final ArrayList<Boolean> newInsns = new ArrayList<Boolean>();
+        private Map<Label, Label> uninitializedLabels;
+
+        private int lineNumber = -1;
+        private int pendingCatches = 0;
+        private int stackNum = 0;
+        private Label firstLabel, lastLabel;
+        private Label captureStart, captureEnd, captureHandler;
+
+        MonitorMethodCallMethodVisitor(MethodVisitor mv, int access, String methodName, int maxLocals,
+                                       boolean hasExceptionHandler, boolean probes)
+        {
+            super(ASM7, mv);
+            this.access = access;
+            this.methodName = methodName;
+            this.entryLocal = maxLocals;
+            this.hasExceptionHandler = hasExceptionHandler;
+            this.probes = probes;
+            this.captureEntry = probes &&
+                    MonitorMethodCallTransformer.isCaptureMethod(captureStartMethod, className, methodName);
+            this.captureExit = probes &&
+                    MonitorMethodCallTransformer.isCaptureMethod(captureEndMethod, className, methodName);
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+
+            if (probes && entryProbes) {
+                pushInt(CallSiteRegistry.registerMethod(className, methodName,
+                        MonitorMethodCallTransformer.entryOpcode(access, methodName)));
+                super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS,
+                        MonitorMethodCallTransformer.isCaptureMethod(captureStartMethod, className, methodName)
+                                ? "instrumentCaptureEntry" : "instrumentMethodEntry",
+                        "(I)V", false);
+
+                stackNum = 1;
+            } else if (captureEntry) {
+                super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS, "instrumentCaptureMethodEntry", "()V", false);
+            }
+
+            if (captureExit && !"<init>".equals(methodName)) {
+                captureStart = new Label();
+                captureEnd = new Label();
+                captureHandler = new Label();
+                stackNum = Math.max(stackNum, 1);
+            }
+
+            if (hasExceptionHandler) {
+                pushInt(CallSiteRegistry.registerRoot(className, methodName));
+                super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS,
+                        "getOrCreateCurrentCallContext", "(I)I", false);
+                super.visitVarInsn(ISTORE, entryLocal);
+
+                stackNum = 2;
+            }
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            super.visitTryCatchBlock(start, end, handler, type);
+
+            if (type != null) {
+                Integer count = handlers.get(handler);
+                handlers.put(handler, count == null ? 1 : count + 1);
+            }
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            beforeInsn();
+            super.visitLabel(label);
+
+            if (firstLabel == null)
+                firstLabel = label;
+            lastLabel = label;
+            pendingLabels.add(label);
+
+            Integer count = handlers.get(label);
+            if (count != null)
+                pendingCatches += count;
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            super.visitLineNumber(line, start);
+            lineNumber = line;
+        }
+
+        @Override
+        public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+            beforeInsn();
+
+            if (uninitializedLabels != null) {
+                relabelFrameTypes(local, numLocal);
+                relabelFrameTypes(stack, numStack);
+            }
+
+            if (!hasExceptionHandler) {
+                super.visitFrame(type, numLocal, local, numStack, stack);
+                return;
+            }
+
+            int localNum = 0;
+            for (int i = 0; i < numLocal; i++) {
+                if (local[i] == LONG || local[i] == DOUBLE)
+                    localNum += 2;
+                else
+                    localNum++;
+            }
+
+            int num = entryLocal - localNum;
+            Object[] expanded = new Object[numLocal + Math.max(num, 0) + 1];
+            System.arraycopy(local, 0, expanded, 0, numLocal);
+            int n = numLocal;
+            for (int i = num; i > 0; i--) {
+                expanded[n++] = TOP;
+            }
+            expanded[n++] = INTEGER;
+
+            super.visitFrame(type, n, expanded, numStack, stack);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            beforeInsn();
+
+            if (probes && opcode == ATHROW)
+                super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS,
+                        "instrumentThrowException", "()V", false);
+
+            if (probes && entryProbes && opcode >= IRETURN && opcode <= RETURN)
+                super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS,
+                        MonitorMethodCallTransformer.isCaptureMethod(captureEndMethod, className, methodName)
+                                ? "instrumentCaptureExit" : "instrumentMethodExit",
+                        "()V", false);
+            else if (captureExit && opcode >= IRETURN && opcode <= RETURN)
+                super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS, "instrumentCaptureMethodExit", "()V", false);
+
+            super.visitInsn(opcode);
+            afterInsn();
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            beforeInsn();
+            super.visitIntInsn(opcode, operand);
+            afterInsn();
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            beforeInsn();
+            super.visitVarInsn(opcode, var);
+            afterInsn();
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            beforeInsn();
+
+            if (opcode == NEW && probes && !entryProbes) {
+                boolean instrumented = !type.startsWith("org/husky/") && filter.acceptMethod(type, "<init>");
+                newInsns.add(instrumented);
+
+                if (instrumented) {
+                    pushCallStart(type, "<init>", INVOKESPECIAL);
+                    relabelNewInsn();
+                    stackNum = 1;
+                }
+            }
+
+            super.visitTypeInsn(opcode, type);
+            afterInsn();
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            beforeInsn();
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+            afterInsn();
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            beforeInsn();
+
+            if (!probes || entryProbes) {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                afterInsn();
+                return;
+            }
+
+            if (owner.startsWith("org/husky/") || !filter.acceptMethod(owner, name)) {
+                if ("<init>".equals(name) && !newInsns.isEmpty() && opcode == INVOKESPECIAL)
+                    newInsns.remove(newInsns.size() - 1);
+
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                afterInsn();
+                return;
+            }
+
+            boolean started = false;
+            if ("<init>".equals(name) && !newInsns.isEmpty() && opcode == INVOKESPECIAL)
+                started = newInsns.remove(newInsns.size() - 1);
+
+            if (!started)
+                pushCallStart(owner, name, opcode);
+
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            pushCallFinish(owner, name);
+            stackNum = 1;
+            afterInsn();
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+                                           Object... bootstrapMethodArguments)
+        {
+            beforeInsn();
+
+            if (!probes || entryProbes) {
+                super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+                afterInsn();
+                return;
+            }
+
+            pushCallStart(CallSite.LAMBDA_OWNER, name, INVOKEDYNAMIC);
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+            pushCallFinish(CallSite.LAMBDA_OWNER, name);
+            stackNum = 1;
+            afterInsn();
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            beforeInsn();
+            super.visitJumpInsn(opcode, label);
+            afterInsn();
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            beforeInsn();
+            super.visitLdcInsn(value);
+            afterInsn();
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            beforeInsn();
+            super.visitIincInsn(var, increment);
+            afterInsn();
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            beforeInsn();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+            afterInsn();
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            beforeInsn();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+            afterInsn();
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            beforeInsn();
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+            afterInsn();
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            if (captureHandler != null) {
+                super.visitLabel(captureEnd);
+                super.visitLabel(captureHandler);
+                if (frames)
+                    super.visitFrame(F_NEW, 0, new Object[0], 1, new Object[] {"java/lang/Throwable"});
+                super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS, "instrumentCaptureThrow", "()V", false);
+                super.visitInsn(ATHROW);
+            }
+
+            if (hasExceptionHandler) {
+                super.visitLocalVariable("$methodCallEntry", "I", null, firstLabel, lastLabel, entryLocal);
+                maxLocals++;
+            }
+
+            super.visitMaxs(maxStack + stackNum, maxLocals);
+        }
+
+        /*
+         * ClassReader visits all of a method's try-catch blocks before its
+         * first label or instruction.
+         */
+        private void beforeInsn() {
+            if (captureStart == null)
+                return;
+
+            super.visitTryCatchBlock(captureStart, captureEnd, captureHandler, null);
+            super.visitLabel(captureStart);
+            captureStart = null;
+        }
+
+        private void afterInsn() {
+            pendingLabels.clear();
+
+            for (; pendingCatches > 0; pendingCatches--) {
+                super.visitVarInsn(ILOAD, entryLocal);
+                super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS,
+                        "instrumetCatchException", "(I)V", false);
+            }
+        }
+
+        private void pushCallStart(String calleeClass, String calleeMethod, int opcode) {
+            pushInt(CallSiteRegistry.register(className, methodName, calleeClass, calleeMethod, opcode, lineNumber));
+            super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS,
+                    MonitorMethodCallTransformer.isCaptureMethod(captureStartMethod, calleeClass, calleeMethod)
+                            ? "instrumentCaptureStart" : "instrumentMethodCallStart",
+                    "(I)V", false);
+        }
+
+        private void pushCallFinish(String calleeClass, String calleeMethod) {
+            super.visitMethodInsn(INVOKESTATIC, TRANSFORMER_CLASS,
+                    MonitorMethodCallTransformer.isCaptureMethod(captureEndMethod, calleeClass, calleeMethod)
+                            ? "instrumentCaptureEnd" : "instrumentMethodCallFinish",
+                    "()V", false);
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5)
+                super.visitInsn(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+                super.visitIntInsn(BIPUSH, value);
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+                super.visitIntInsn(SIPUSH, value);
+            else
+                super.visitLdcInsn(value);
+        }
+
+        /*
+         * The probe now sits between the labels that preceded the NEW and the
+         * NEW itself, so frames must name a fresh label as the uninitialized
+         * type's allocation site.
+         */
+        private void relabelNewInsn() {
+            if (pendingLabels.isEmpty())
+                return;
+
+            Label newLabel = new Label();
+            super.visitLabel(newLabel);
+
+            if (uninitializedLabels == null)
+                uninitializedLabels = new HashMap<Label, Label>();
+            for (Label label : pendingLabels) {
+                uninitializedLabels.put(label, newLabel);
+            }
+        }
+
+        private void relabelFrameTypes(Object[] types, int num) {
+            if (types == null)
+                return;
+
+            for (int i = 0; i < num; i++) {
+                Label label = uninitializedLabels.get(types[i]);
+                if (label != null)
+                    types[i] = label;
+            }
+        }
+    }
+}
@@ -10,21 +10,42 @@ import org.objectweb.asm.tree.*;
 import java.io.*;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import static org.objectweb.asm.Opcodes.*;
 
 public class MonitorMethodCallTransformer implements ClassFileTransformer {
+    public static final String TREE_ENGINE = "tree";
+    public static final String STREAM_ENGINE = "stream";
+    public static final String CALL_SITE_PROBE = "callsite";
+    public static final String ENTRY_PROBE = "entry";
+
     private static final String TRANSFORMER_CLASS = "org/husky/MonitorMethodCallTransformer";
-    private static final String CALL_CONTEXT_CLASS = "org/husky/MethodCallContext";
+    private static final String[] JDK_PACKAGES = {"java/", "javax", "jdk", "sun", "com/sun"};
+    private static final String[] AGENT_PACKAGES = {"org/husky/", "java/lang/ThreadLocal", "java/lang/ref/"};
 
     private boolean debug = false;
     private boolean instrumentJdkMethod = false;
     private String outputTransformedClass;
     private String traceTransformedClass;
     private String checkTransformedClass;
+    private String captureStartMethod;
+    private String captureEndMethod;
+    private PrefixFilter filter;
+    private MethodPolicy policy;
+    private boolean streamEngine;
+    private boolean entryProbes;
+    private boolean retransformLoadedClasses = false;
+    private ClassCache cache;
+    private final AgentMetrics metrics = new AgentMetrics();
+    private ShutdownHook summaryHook;
 
     private static MethodCallInstrumenter instrumenter;
 
@@ -34,6 +55,37 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
         outputTransformedClass = agentOption.getOutputTransformedClass();
         traceTransformedClass = agentOption.getTraceTransformedClass();
         checkTransformedClass = agentOption.getCheckTransformedClass();
+        captureStartMethod = toInternalMethodName(agentOption.getCaptureStart());
+        captureEndMethod = toInternalMethodName(agentOption.getCaptureEnd());
+        if (captureEndMethod == null)
+            captureEndMethod = captureStartMethod;
+
+        if (STREAM_ENGINE.equals(agentOption.getEngine())) {
+            streamEngine = true;
+        } else if (TREE_ENGINE.equals(agentOption.getEngine())) {
+            streamEngine = false;
+        } else {
+            throw new IllegalArgumentException(agentOption.getEngine());
+        }
+
+        if (ENTRY_PROBE.equals(agentOption.getProbe())) {
+            entryProbes = true;
+        } else if (CALL_SITE_PROBE.equals(agentOption.getProbe())) {
+            entryProbes = false;
+        } else {
+            throw new IllegalArgumentException(agentOption.getProbe());
+        }
+
+        filter = createFilter(agentOption);
+        policy = new MethodPolicy(agentOption, filter, entryProbes);
+
+        if (agentOption.getCacheDir() != null) {
+            try {
+                cache = new ClassCache(new File(agentOption.getCacheDir()), agentOption.getInstrumentationFingerprint());
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot open class cache: " + agentOption.getCacheDir(), e);
+            }
+        }
 
         instrumenter = new MethodCallInstrumenter();
 
@@ -41,8 +93,10 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
         instrumenter.setInstrumentThread(agentOption.getThread());
         instrumenter.setInstrumentStartPoint(agentOption.getCaptureStart());
         instrumenter.setInstrumentEndPoint(agentOption.getCaptureEnd());
+        instrumenter.setSampleRate(agentOption.getSampleRate());
+        instrumenter.setSampleInterval(agentOption.getSampleInterval());
         if (agentOption.getProcessor() != null)
-            instrumenter.setProcessor(agentOption.getProcessor());
+            instrumenter.setProcessor(agentOption);
     }
 
     public byte[] transform(ClassLoader loader,
@@ -51,50 +105,83 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
                      ProtectionDomain protectionDomain,
                      byte[] classfileBuffer)
             throws IllegalClassFormatException {
+        long start = System.nanoTime();
         try {
-            if (classBeingRedefined != null) {
-                return null;
-            }
+            byte[] bytes = instrumentClass(className, classBeingRedefined, classfileBuffer);
+            if (bytes == null)
+                metrics.classSkipped();
+            else
+                metrics.classTransformed(System.nanoTime() - start);
+
+            return bytes;
+        } catch (Exception e) {
+            metrics.classFailed();
+
+            if (debug)
+                e.printStackTrace();
 
-            if (className.startsWith("org/husky/"))
-                return null;
+            IllegalClassFormatException exception = new IllegalClassFormatException();
+            exception.initCause(e);
+            throw exception;
+        }
+    }
 
-            if (!instrumentJdkMethod && isInstrumentJdkClass(className))
-                return null;
+    private byte[] instrumentClass(String className, Class<?> classBeingRedefined, byte[] classfileBuffer)
+            throws IOException
+    {
+        if (classBeingRedefined != null && !retransformLoadedClasses) {
+            return null;
+        }
 
-            ClassNode classNode = injectInstrumentCodes(classfileBuffer);
+        if (className == null || isAgentClass(className))
+            return null;
 
-            ClassWriter cw = new ClassWriter(0);
+        if (!filter.acceptClass(className))
+            return null;
 
-            if (debug) {
-                ClassVisitor cv = cw;
+        String cacheKey = null;
+        if (cache != null && !debug) {
+            cacheKey = cache.key(classfileBuffer);
+            byte[] cached = cache.load(cacheKey);
+            if (cached != null) {
+                // the policy scan only reads the Code attributes, so hits report the same methods as misses
+                reportPolicy(className, policy.decide(new ClassReader(classfileBuffer)));
+                return cached;
+            }
+        }
 
-                if (traceTransformedClass != null && className.equals(traceTransformedClass)) {
-                    cv = getTraceClassVisitor(cv, className);
-                }
+        ClassWriter cw = new ClassWriter(0);
 
-                if (checkTransformedClass != null && className.equals(checkTransformedClass)) {
-                    cv = new CheckClassAdapter(cv);
-                }
+        if (debug) {
+            ClassVisitor cv = cw;
 
-                classNode.accept(cv);
+            if (traceTransformedClass != null && className.equals(traceTransformedClass)) {
+                cv = getTraceClassVisitor(cv, className);
+            }
 
-                if (outputTransformedClass != null && className.equals(outputTransformedClass)) {
-                    outputTransformedClass(cw.toByteArray(), className);
-                }
-            } else {
-                classNode.accept(cw);
+            if (checkTransformedClass != null && className.equals(checkTransformedClass)) {
+                cv = new CheckClassAdapter(cv);
             }
 
-            return cw.toByteArray();
-        } catch (Exception e) {
-            if (debug)
-                e.printStackTrace();
+            instrument(classfileBuffer, cv);
 
-            IllegalClassFormatException exception = new IllegalClassFormatException();
-            exception.initCause(e);
-            throw exception;
+            if (outputTransformedClass != null && className.equals(outputTransformedClass)) {
+                outputTransformedClass(cw.toByteArray(), className);
+            }
+        } else {
+            instrument(classfileBuffer, cw);
+        }
+
+        byte[] bytes = cw.toByteArray();
+        if (cacheKey != null) {
+            try {
+                cache.store(cacheKey, bytes);
+            } catch (IOException e) {
+                // a failed store only costs a re-instrumentation next run
+            }
         }
+
+        return bytes;
     }
 
     private void outputTransformedClass(byte[] bytes, String className) throws IOException {
@@ -109,59 +196,188 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
         return new TraceClassVisitor(cv, new PrintWriter(traceFile));
     }
 
-    public static void instrumentMethodCallStart(String callerClass,
-                                                 String callerMethod,
-                                                 String calleeClass,
-                                                 String calleeMethod,
-                                                 int opcode,
-                                                 int line)
-    {
-        instrumenter.methodCallStart(callerClass, callerMethod, calleeClass, calleeMethod, opcode, line);
+    public AgentMetrics getMetrics() {
+        return metrics;
+    }
+
+    /*
+     * Prints how many methods the MethodPolicy kept from full instrumentation
+     * when the JVM exits, if any; debug lists each one as it is transformed.
+     */
+    public void printSummaryAtExit() {
+        summaryHook = new ShutdownHook(new Runnable() {
+            public void run() {
+                if (metrics.getDegradedMethods() + metrics.getSkippedMethods() > 0)
+                    System.err.println("husky: " + metrics.getTransformedClasses() + " classes transformed, " +
+                            metrics.getDegradedMethods() + " methods degraded and " +
+                            metrics.getSkippedMethods() + " skipped by the size limits and opt-outs");
+            }
+        }, "husky-transform-summary");
+    }
+
+    /*
+     * Called once the transformer is removed and the classes retransformed:
+     * prints the summary now and releases the instrumenter's threads and
+     * processor, the MBean and the cache lock, so the agent can be attached
+     * again with the same options.
+     */
+    public void close() {
+        if (summaryHook != null)
+            summaryHook.runNow();
+
+        instrumenter.close();
+        metrics.unregister();
+
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                if (debug)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    public void setRetransformLoadedClasses(boolean retransformLoadedClasses) {
+        this.retransformLoadedClasses = retransformLoadedClasses;
+    }
+
+    public Class<?>[] getInstrumentableClasses(Instrumentation instrumentation) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (clazz.isArray() || clazz.isPrimitive() || !instrumentation.isModifiableClass(clazz))
+                continue;
+
+            String className = clazz.getName().replace('.', '/');
+            if (isAgentClass(className) || !filter.acceptClass(className))
+                continue;
+
+            classes.add(clazz);
+        }
+
+        return classes.toArray(new Class<?>[classes.size()]);
+    }
+
+    public static void instrumentMethodCallStart(int callSite) {
+        instrumenter.methodCallStart(callSite);
+    }
+
+    public static void instrumentCaptureStart(int callSite) {
+        instrumenter.methodCaptureStart(callSite);
+    }
+
+    public static void instrumentCaptureEnd() {
+        instrumenter.methodCaptureEnd();
     }
 
     public static void instrumentMethodCallFinish() {
         instrumenter.methodCallFinish();
     }
 
+    public static void instrumentMethodEntry(int method) {
+        instrumenter.methodEntry(method);
+    }
+
+    public static void instrumentCaptureEntry(int method) {
+        instrumenter.methodCaptureEntry(method);
+    }
+
+    public static void instrumentMethodExit() {
+        instrumenter.methodExit();
+    }
+
+    public static void instrumentCaptureExit() {
+        instrumenter.methodCaptureExit();
+    }
+
+    public static void instrumentCaptureMethodEntry() {
+        instrumenter.methodCaptureMethodEntry();
+    }
+
+    public static void instrumentCaptureMethodExit() {
+        instrumenter.methodCaptureMethodExit();
+    }
+
+    public static void instrumentCaptureThrow() {
+        instrumenter.methodCaptureThrow();
+    }
+
     public static void instrumentThrowException() {
         instrumenter.methodThrowException();
     }
 
-    public static void instrumetCatchException(MethodCallContext context) {
-        instrumenter.methodCatchException(context);
+    public static void instrumetCatchException(int depth) {
+        instrumenter.methodCatchException(depth);
     }
 
-    public static MethodCallContext getOrCreateCurrentCallContext(String className, String methodName) {
-        return instrumenter.getOrCreateCurrentCallContext(className, methodName);
+    public static int getOrCreateCurrentCallContext(int rootCallSite) {
+        return instrumenter.getOrCreateCurrentCallContext(rootCallSite);
     }
 
-    private boolean isInstrumentJdkClass(String name) {
-        return name.startsWith("java/") || name.startsWith("javax")
-                || name.startsWith("jdk") || name.startsWith("sun")
-                || name.startsWith("com/sun");
+    public static MethodCallInstrumenter getInstrumenter() {
+        return instrumenter;
     }
 
-    private ClassNode injectInstrumentCodes(byte[] classfileBuffer) {
+    private void instrument(byte[] classfileBuffer, ClassVisitor cv) {
         ClassReader cr = new ClassReader(classfileBuffer);
+        Map<String, MethodPolicy.CodeInfo> methods = policy.decide(cr);
+        reportPolicy(cr.getClassName(), methods);
+
+        if (streamEngine) {
+            cr.accept(new MonitorMethodCallClassVisitor(cv, methods, filter, captureStartMethod, captureEndMethod,
+                            entryProbes), ClassReader.EXPAND_FRAMES);
+        } else {
+            injectInstrumentCodes(cr, methods).accept(cv);
+        }
+    }
+
+    private void reportPolicy(String className, Map<String, MethodPolicy.CodeInfo> methods) {
+        for (Map.Entry<String, MethodPolicy.CodeInfo> entry : methods.entrySet()) {
+            MethodPolicy.CodeInfo info = entry.getValue();
+            if (info.getReason() == null)
+                continue;
+
+            boolean degraded = info.getAction() == MethodPolicy.DEGRADE;
+            if (degraded)
+                metrics.methodDegraded();
+            else
+                metrics.methodSkipped();
+
+            if (debug)
+                System.err.println("husky: " + (degraded ? "degraded " : "skipped ") + className + "." +
+                        entry.getKey() + ", " + info.getCodeLength() + " -> " + info.getInstrumentedLength() +
+                        " bytes (" + info.getReason() + ")");
+        }
+    }
+
+    private ClassNode injectInstrumentCodes(ClassReader cr, Map<String, MethodPolicy.CodeInfo> methods) {
         ClassNode classNode = new ClassNode(ASM7);
 
         cr.accept(classNode, ClassReader.EXPAND_FRAMES);
 
         for (MethodNode methodNode : classNode.methods) {
-            injectInspector(methodNode, classNode.name);
+            MethodPolicy.CodeInfo info = methods.get(methodNode.name + methodNode.desc);
+            if (info == null || info.getAction() == MethodPolicy.SKIP)
+                continue;
+
+            injectInspector(methodNode, classNode.name, classNode.version,
+                    info.getAction() == MethodPolicy.INSTRUMENT);
         }
 
         return classNode;
     }
 
-    private void injectInspector(MethodNode methodNode, String className) {
+    private void injectInspector(MethodNode methodNode, String className, int version, boolean probes) {
         InsnList insnList = methodNode.instructions;
         Iterator<AbstractInsnNode> iterator = insnList.iterator();
         int lineNumber = -1;
-        TypeInsnNode newInsn = null;
+        ArrayList<TypeInsnNode> newInsns = new ArrayList<TypeInsnNode>();
         LabelNode firstLabel = null, lastLabel = null;
         int stackNum = 0;
         boolean hasExceptionHandler = false;
+        boolean captureEntry = probes && isCaptureMethod(captureStartMethod, className, methodNode.name);
+        boolean captureExit = probes && isCaptureMethod(captureEndMethod, className, methodNode.name);
+        Map<LabelNode, LabelNode> uninitializedLabels = new HashMap<LabelNode, LabelNode>();
 
         if (methodNode.tryCatchBlocks.size() > 0) {
             for (TryCatchBlockNode tryCatchBlock : methodNode.tryCatchBlocks) {
@@ -175,27 +391,34 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
                     insnNode = insnNode.getNext();
 
                 InsnList il = new InsnList();
-                il.add(new VarInsnNode(ALOAD, methodNode.maxLocals));
+                il.add(new VarInsnNode(ILOAD, methodNode.maxLocals));
                 il.add(new MethodInsnNode(INVOKESTATIC, TRANSFORMER_CLASS,
-                        "instrumetCatchException", "(L" + CALL_CONTEXT_CLASS + ";)V", false));
+                        "instrumetCatchException", "(I)V", false));
                 insnList.insert(insnNode, il);
             }
         }
 
         if (hasExceptionHandler) {
             InsnList il = new InsnList();
-            il.add(new LdcInsnNode(className));
-            il.add(new LdcInsnNode(methodNode.name));
+            il.add(pushInt(CallSiteRegistry.registerRoot(className, methodNode.name)));
             il.add(new MethodInsnNode(INVOKESTATIC, TRANSFORMER_CLASS,
                     "getOrCreateCurrentCallContext",
-                    "(Ljava/lang/String;Ljava/lang/String;)L" + CALL_CONTEXT_CLASS + ";",
+                    "(I)I",
                     false));
-            il.add(new VarInsnNode(ASTORE, methodNode.maxLocals));
+            il.add(new VarInsnNode(ISTORE, methodNode.maxLocals));
             insnList.insert(il);
 
             stackNum = 2;
         }
 
+        if (probes && entryProbes && insnList.size() > 0) {
+            insnList.insert(instrumentMethodEntryInsnList(className, methodNode.name, methodNode.access));
+            stackNum = Math.max(stackNum, 1);
+        } else if (captureEntry && insnList.size() > 0) {
+            insnList.insert(new MethodInsnNode(INVOKESTATIC, TRANSFORMER_CLASS,
+                    "instrumentCaptureMethodEntry", "()V", false));
+        }
+
         while (iterator.hasNext()) {
             AbstractInsnNode insnNode = iterator.next();
             int opcode = insnNode.getOpcode();
@@ -214,7 +437,7 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
                 for (int i = num; i > 0; i--) {
                     frameNode.local.add(TOP);
                 }
-                frameNode.local.add(CALL_CONTEXT_CLASS);
+                frameNode.local.add(INTEGER);
 
                 continue;
             }
@@ -232,8 +455,11 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
                 continue;
             }
 
+            if (!probes)
+                continue;
+
             if (insnNode instanceof TypeInsnNode && opcode == NEW) {
-                newInsn = (TypeInsnNode) insnNode;
+                newInsns.add((TypeInsnNode) insnNode);
                 continue;
             }
 
@@ -245,13 +471,29 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
                 continue;
             }
 
+            if (entryProbes) {
+                if (opcode >= IRETURN && opcode <= RETURN)
+                    insnList.insertBefore(insnNode, instrumentMethodExitInsnList(className, methodNode.name));
+                continue;
+            }
+
+            if (captureExit && opcode >= IRETURN && opcode <= RETURN) {
+                insnList.insertBefore(insnNode, new MethodInsnNode(INVOKESTATIC, TRANSFORMER_CLASS,
+                        "instrumentCaptureMethodExit", "()V", false));
+                continue;
+            }
+
             if (insnNode instanceof MethodInsnNode) {
                 MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
 
+                TypeInsnNode newInsn = null;
+                if (opcode == INVOKESPECIAL && "<init>".equals(methodInsnNode.name) && !newInsns.isEmpty())
+                    newInsn = newInsns.remove(newInsns.size() - 1);
+
                 if (methodInsnNode.owner.startsWith("org/husky/"))
                     continue;
 
-                if (!instrumentJdkMethod && isInstrumentJdkClass(methodInsnNode.owner))
+                if (!filter.acceptMethod(methodInsnNode.owner, methodInsnNode.name))
                     continue;
 
                 InsnList il = instrumentMethodCallStartInsnList(
@@ -259,17 +501,16 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
                         methodInsnNode.owner, methodInsnNode.name,
                         opcode, lineNumber);
 
-                if ("<init>".equals(methodInsnNode.name) && newInsn != null) {
-                    insertInsnListBefore(il, newInsn, insnList);
-                    newInsn = null;
+                if (newInsn != null) {
+                    insertInsnListBeforeNewInsn(il, newInsn, insnList, uninitializedLabels);
                 } else {
                     insertInsnListBefore(il, insnNode, insnList);
                 }
 
-                il = instrumentMethodCallFinishInsnList();
+                il = instrumentMethodCallFinishInsnList(methodInsnNode.owner, methodInsnNode.name);
                 insnList.insert(insnNode, il);
 
-                stackNum = 6;
+                stackNum = 1;
 
                 continue;
             }
@@ -278,27 +519,42 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
                 InvokeDynamicInsnNode invokeDynamicInsnNode = (InvokeDynamicInsnNode) insnNode;
                 InsnList il = instrumentMethodCallStartInsnList(
                         className, methodNode.name,
-                        "__lambda__", invokeDynamicInsnNode.name,
+                        CallSite.LAMBDA_OWNER, invokeDynamicInsnNode.name,
                         opcode, lineNumber);
 
                 insertInsnListBefore(il, insnNode, insnList);
 
-                il = instrumentMethodCallFinishInsnList();
+                il = instrumentMethodCallFinishInsnList(CallSite.LAMBDA_OWNER, invokeDynamicInsnNode.name);
                 insnList.insert(insnNode, il);
 
-                stackNum = 6;
+                stackNum = 1;
 
                 continue;
             }
         }
 
 
+        if (!uninitializedLabels.isEmpty()) {
+            for (AbstractInsnNode insnNode : insnList.toArray()) {
+                if (insnNode instanceof FrameNode) {
+                    FrameNode frameNode = (FrameNode) insnNode;
+                    relabelFrameTypes(frameNode.local, uninitializedLabels);
+                    relabelFrameTypes(frameNode.stack, uninitializedLabels);
+                }
+            }
+        }
+
+        if (captureExit && insnList.size() > 0 && !"<init>".equals(methodNode.name)) {
+            injectCaptureThrowHandler(methodNode, version);
+            stackNum = Math.max(stackNum, 1);
+        }
+
         methodNode.maxStack += stackNum;
 
         if (hasExceptionHandler) {
             List<LocalVariableNode> variables = methodNode.localVariables;
             variables.add(new LocalVariableNode("$methodCallEntry",
-                    "L" + CALL_CONTEXT_CLASS + ";",
+                    "I",
                     null,
                     firstLabel,
                     lastLabel,
@@ -308,6 +564,28 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
         }
     }
 
+    /*
+     * A catch-all handler after the method's own, so only an exception
+     * leaving the method reaches it. Its frame has no locals; constructors
+     * are left out since their handler could not see an initialized this.
+     */
+    private void injectCaptureThrowHandler(MethodNode methodNode, int version) {
+        LabelNode start = new LabelNode();
+        LabelNode end = new LabelNode();
+        LabelNode handler = new LabelNode();
+
+        InsnList insnList = methodNode.instructions;
+        insnList.insert(start);
+        insnList.add(end);
+        insnList.add(handler);
+        if ((version & 0xffff) >= V1_6)
+            insnList.add(new FrameNode(F_NEW, 0, new Object[0], 1, new Object[] {"java/lang/Throwable"}));
+        insnList.add(new MethodInsnNode(INVOKESTATIC, TRANSFORMER_CLASS, "instrumentCaptureThrow", "()V", false));
+        insnList.add(new InsnNode(ATHROW));
+
+        methodNode.tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, null));
+    }
+
     private void insertInsnListBefore(InsnList il, AbstractInsnNode target, InsnList insnList) {
         AbstractInsnNode prevTarget = target.getPrevious();
 
@@ -318,6 +596,39 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
         }
     }
 
+    private void insertInsnListBeforeNewInsn(InsnList il,
+                                             TypeInsnNode newInsn,
+                                             InsnList insnList,
+                                             Map<LabelNode, LabelNode> labels)
+    {
+        LabelNode newLabel = null;
+        AbstractInsnNode insnNode = newInsn.getPrevious();
+        while (insnNode != null && insnNode.getOpcode() == -1) {
+            if (insnNode instanceof LabelNode) {
+                if (newLabel == null)
+                    newLabel = new LabelNode();
+                labels.put((LabelNode) insnNode, newLabel);
+            }
+            insnNode = insnNode.getPrevious();
+        }
+
+        insertInsnListBefore(il, newInsn, insnList);
+
+        if (newLabel != null)
+            insnList.insertBefore(newInsn, newLabel);
+    }
+
+    private void relabelFrameTypes(List<Object> types, Map<LabelNode, LabelNode> labels) {
+        if (types == null)
+            return;
+
+        for (int i = 0; i < types.size(); i++) {
+            LabelNode label = labels.get(types.get(i));
+            if (label != null)
+                types.set(i, label);
+        }
+    }
+
     private InsnList instrumentMethodCallStartInsnList(String callerClass,
                                                        String callerMethod,
                                                        String calleeClass,
@@ -325,28 +636,114 @@ public class MonitorMethodCallTransformer implements ClassFileTransformer {
                                                        int opcode,
                                                        int line)
     {
+        int callSite = CallSiteRegistry.register(callerClass, callerMethod, calleeClass, calleeMethod, opcode, line);
+
         InsnList il = new InsnList();
-        il.add(new LdcInsnNode(callerClass));
-        il.add(new LdcInsnNode(callerMethod));
-        il.add(new LdcInsnNode(calleeClass));
-        il.add(new LdcInsnNode(calleeMethod));
-        il.add(new LdcInsnNode(opcode));
-        il.add(new LdcInsnNode(Integer.valueOf(line)));
+        il.add(pushInt(callSite));
         il.add(new MethodInsnNode(
                 INVOKESTATIC,
                 TRANSFORMER_CLASS,
-                "instrumentMethodCallStart",
-                "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;II)V",
+                isCaptureMethod(captureStartMethod, calleeClass, calleeMethod)
+                        ? "instrumentCaptureStart" : "instrumentMethodCallStart",
+                "(I)V",
                 false));
 
         return il;
     }
 
-    private InsnList instrumentMethodCallFinishInsnList() {
+    private AbstractInsnNode pushInt(int value) {
+        if (value >= -1 && value <= 5)
+            return new InsnNode(ICONST_0 + value);
+
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            return new IntInsnNode(BIPUSH, value);
+
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            return new IntInsnNode(SIPUSH, value);
+
+        return new LdcInsnNode(value);
+    }
+
+    private InsnList instrumentMethodCallFinishInsnList(String calleeClass, String calleeMethod) {
+        InsnList il = new InsnList();
+        il.add(new MethodInsnNode(INVOKESTATIC, TRANSFORMER_CLASS,
+                isCaptureMethod(captureEndMethod, calleeClass, calleeMethod)
+                        ? "instrumentCaptureEnd" : "instrumentMethodCallFinish",
+                "()V", false));
+
+        return il;
+    }
+
+    private InsnList instrumentMethodEntryInsnList(String className, String methodName, int access) {
         InsnList il = new InsnList();
+        il.add(pushInt(CallSiteRegistry.registerMethod(className, methodName, entryOpcode(access, methodName))));
         il.add(new MethodInsnNode(INVOKESTATIC, TRANSFORMER_CLASS,
-                "instrumentMethodCallFinish", "()V", false));
+                isCaptureMethod(captureStartMethod, className, methodName)
+                        ? "instrumentCaptureEntry" : "instrumentMethodEntry",
+                "(I)V", false));
 
         return il;
     }
+
+    private InsnList instrumentMethodExitInsnList(String className, String methodName) {
+        InsnList il = new InsnList();
+        il.add(new MethodInsnNode(INVOKESTATIC, TRANSFORMER_CLASS,
+                isCaptureMethod(captureEndMethod, className, methodName)
+                        ? "instrumentCaptureExit" : "instrumentMethodExit",
+                "()V", false));
+
+        return il;
+    }
+
+    /*
+     * The invoke opcode a method is reached by, for the call sites that
+     * method-entry probes register.
+     */
+    static int entryOpcode(int access, String methodName) {
+        if ((access & ACC_STATIC) != 0)
+            return INVOKESTATIC;
+
+        if ((access & ACC_PRIVATE) != 0 || "<init>".equals(methodName))
+            return INVOKESPECIAL;
+
+        return INVOKEVIRTUAL;
+    }
+
+    public static PrefixFilter createFilter(AgentOption agentOption) {
+        List<String> excludes = PrefixFilter.parsePatterns(agentOption.getExclude());
+        if (!agentOption.isIncludeJdkMethod())
+            excludes.addAll(Arrays.asList(JDK_PACKAGES));
+        return new PrefixFilter(PrefixFilter.parsePatterns(agentOption.getInclude()), excludes);
+    }
+
+    /*
+     * The agent's own classes, and the JDK classes a probe calls before its
+     * re-entrancy guard, are never instrumented, whatever the filter says.
+     */
+    public static boolean isAgentClass(String className) {
+        for (String prefix : AGENT_PACKAGES) {
+            if (className.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    static boolean isCaptureMethod(String captureMethod, String calleeClass, String calleeMethod) {
+        return captureMethod != null
+                && captureMethod.length() == calleeClass.length() + 1 + calleeMethod.length()
+                && captureMethod.startsWith(calleeClass)
+                && captureMethod.charAt(calleeClass.length()) == '.'
+                && captureMethod.endsWith(calleeMethod);
+    }
+
+    private static String toInternalMethodName(String method) {
+        if (method == null)
+            return null;
+
+        int index = method.lastIndexOf('.');
+        if (index < 0)
+            throw new IllegalArgumentException(method);
+
+        return method.substring(0, index).replace('.', '/') + method.substring(index);
+    }
 }
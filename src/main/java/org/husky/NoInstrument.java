@@ -0,0 +1,16 @@
+package org.husky;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/*
+ * Keeps the probes out of a method, or every method of a class. MethodPolicy
+ * matches the simple name, so an application can declare its own
+ * NoInstrument annotation instead of depending on the agent.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.TYPE, ElementType.METHOD, ElementType.CONSTRUCTOR})
+public @interface NoInstrument {
+}
@@ -0,0 +1,159 @@
+package org.husky;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+public class PrefixFilter {
+    public static final char METHOD_SEPARATOR = '#';
+
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private final char[][] labels;
+    private final int[][] targets;
+    private final byte[] verdicts;
+    private final boolean[] includeBelow;
+    private final boolean hasIncludes;
+
+    public PrefixFilter(List<String> includes, List<String> excludes) {
+        Node root = new Node();
+        for (String pattern : excludes)
+            root.add(normalize(pattern), EXCLUDE);
+        for (String pattern : includes)
+            root.add(normalize(pattern), INCLUDE);
+
+        hasIncludes = !includes.isEmpty();
+
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        root.collect(nodes);
+
+        labels = new char[nodes.size()][];
+        targets = new int[nodes.size()][];
+        verdicts = new byte[nodes.size()];
+        includeBelow = new boolean[nodes.size()];
+
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            labels[i] = new char[node.children.size()];
+            targets[i] = new int[node.children.size()];
+
+            int j = 0;
+            for (Character c : node.children.keySet()) {
+                labels[i][j] = c;
+                targets[i][j] = node.children.get(c).index;
+                j++;
+            }
+
+            verdicts[i] = node.verdict;
+            includeBelow[i] = node.includeBelow;
+        }
+    }
+
+    public boolean acceptClass(String className) {
+        byte verdict = NONE;
+        int node = 0;
+        for (int i = 0; i < className.length(); i++) {
+            node = next(node, className.charAt(i));
+            if (node < 0)
+                return accept(verdict);
+
+            if (verdicts[node] != NONE)
+                verdict = verdicts[node];
+        }
+
+        int method = next(node, METHOD_SEPARATOR);
+        if (method >= 0 && (includeBelow[method] || verdicts[method] == INCLUDE))
+            return true;
+
+        return accept(verdict);
+    }
+
+    public boolean acceptMethod(String owner, String name) {
+        byte verdict = NONE;
+        int node = 0;
+        for (int i = 0; i < owner.length(); i++) {
+            node = next(node, owner.charAt(i));
+            if (node < 0)
+                return accept(verdict);
+
+            if (verdicts[node] != NONE)
+                verdict = verdicts[node];
+        }
+
+        node = next(node, METHOD_SEPARATOR);
+        if (node < 0)
+            return accept(verdict);
+
+        for (int i = 0; i < name.length(); i++) {
+            node = next(node, name.charAt(i));
+            if (node < 0)
+                return accept(verdict);
+
+            if (verdicts[node] != NONE)
+                verdict = verdicts[node];
+        }
+
+        return accept(verdict);
+    }
+
+    public static List<String> parsePatterns(String patterns) {
+        if (patterns == null || patterns.length() == 0)
+            return new ArrayList<String>();
+
+        return new ArrayList<String>(Arrays.asList(patterns.split(",")));
+    }
+
+    private boolean accept(byte verdict) {
+        if (verdict == NONE)
+            return !hasIncludes;
+
+        return verdict == INCLUDE;
+    }
+
+    private int next(int node, char c) {
+        int index = Arrays.binarySearch(labels[node], c);
+        return index < 0 ? -1 : targets[node][index];
+    }
+
+    private static String normalize(String pattern) {
+        int index = pattern.indexOf(METHOD_SEPARATOR);
+        if (index < 0)
+            return pattern.replace('.', '/');
+
+        return pattern.substring(0, index).replace('.', '/') + pattern.substring(index);
+    }
+
+    private static class Node {
+        final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+        byte verdict = NONE;
+        boolean includeBelow = false;
+        int index;
+
+        void add(String pattern, byte verdict) {
+            Node node = this;
+            for (int i = 0; i < pattern.length(); i++) {
+                if (verdict == INCLUDE)
+                    node.includeBelow = true;
+
+                Node child = node.children.get(pattern.charAt(i));
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(pattern.charAt(i), child);
+                }
+                node = child;
+            }
+
+            node.verdict = verdict;
+        }
+
+        void collect(List<Node> nodes) {
+            index = nodes.size();
+            nodes.add(this);
+            for (Node child : children.values())
+                child.collect(nodes);
+        }
+    }
+}
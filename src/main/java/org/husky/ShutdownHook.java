@@ -0,0 +1,51 @@
+package org.husky;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * A shutdown hook that can also be run before exit, as when the agent
+ * detaches: runNow() removes the hook and runs its action on the calling
+ * thread, unless the action has already been run or is running, so it runs
+ * once either way.
+ *
+ * Hooks run concurrently at exit, so one that must run after another owner's
+ * work is removed with handOver(); the action then only runs when that owner
+ * calls runNow(), even from its own shutdown hook.
+ */
+public class ShutdownHook {
+    private final Runnable action;
+    private final Thread hook;
+    private final AtomicBoolean ran = new AtomicBoolean();
+
+    public ShutdownHook(Runnable action, String name) {
+        this.action = action;
+        hook = new Thread(new Runnable() {
+            public void run() {
+                runOnce();
+            }
+        }, name);
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    public void runNow() {
+        remove();
+        runOnce();
+    }
+
+    public void handOver() {
+        remove();
+    }
+
+    private void remove() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // the JVM is exiting, the hook may already be running
+        }
+    }
+
+    private void runOnce() {
+        if (ran.compareAndSet(false, true))
+            action.run();
+    }
+}
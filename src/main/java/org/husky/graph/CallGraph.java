@@ -0,0 +1,102 @@
+package org.husky.graph;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class CallGraph {
+    private final HashMap<String, HashMap<String, long[]>> edges = new HashMap<String, HashMap<String, long[]>>();
+    private int edgeCount = 0;
+
+    public void addEdge(String caller, String callee, long count) {
+        HashMap<String, long[]> callees = edges.get(caller);
+        if (callees == null) {
+            callees = new HashMap<String, long[]>();
+            edges.put(caller, callees);
+        }
+
+        long[] counter = callees.get(callee);
+        if (counter == null) {
+            counter = new long[1];
+            callees.put(callee, counter);
+            edgeCount++;
+        }
+
+        counter[0] += count;
+    }
+
+    public void merge(CallGraph graph) {
+        for (Map.Entry<String, HashMap<String, long[]>> caller : graph.edges.entrySet()) {
+            for (Map.Entry<String, long[]> callee : caller.getValue().entrySet()) {
+                addEdge(caller.getKey(), callee.getKey(), callee.getValue()[0]);
+            }
+        }
+    }
+
+    public long getCount(String caller, String callee) {
+        HashMap<String, long[]> callees = edges.get(caller);
+        if (callees == null)
+            return 0;
+
+        long[] counter = callees.get(callee);
+        return counter == null ? 0 : counter[0];
+    }
+
+    public Set<String> getCallers() {
+        return Collections.unmodifiableSet(edges.keySet());
+    }
+
+    public Set<String> getCallees(String caller) {
+        HashMap<String, long[]> callees = edges.get(caller);
+        if (callees == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(callees.keySet());
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public void write(Writer writer) throws IOException {
+        ArrayList<String> callers = new ArrayList<String>(edges.keySet());
+        Collections.sort(callers);
+
+        for (String caller : callers) {
+            HashMap<String, long[]> callees = edges.get(caller);
+            ArrayList<String> names = new ArrayList<String>(callees.keySet());
+            Collections.sort(names);
+
+            for (String callee : names) {
+                writer.write(caller);
+                writer.write(' ');
+                writer.write(callee);
+                writer.write(' ');
+                writer.write(Long.toString(callees.get(callee)[0]));
+                writer.write('\n');
+            }
+        }
+        writer.flush();
+    }
+
+    public static CallGraph read(Reader reader) throws IOException {
+        CallGraph graph = new CallGraph();
+        BufferedReader in = new BufferedReader(reader);
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] parts = line.split(" ");
+            if (parts.length != 3)
+                throw new IOException("bad call graph edge: " + line);
+
+            graph.addEdge(parts[0], parts[1], Long.parseLong(parts[2]));
+        }
+
+        return graph;
+    }
+}
@@ -0,0 +1,239 @@
+package org.husky.graph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Per-class content hash and extracted edges of a StaticCallGraph run, so
+ * the next run over the same classpath only parses classes whose hash
+ * changed. Class files also keep their size and modification time, so
+ * those that still have both are not even hashed; a modification time of
+ * 0 is never trusted. An index written with other agent options (the
+ * fingerprint) or that cannot be read is treated as empty.
+ *
+ * File: int magic, int version, UTF fingerprint, int string count and the
+ * UTF strings, int class count, then per class int name, long hash, long
+ * size, long modification time, int edge count and per edge int caller,
+ * int callee, int count, where names are indexes into the strings.
+ */
+public class CallGraphIndex {
+    private static final int MAGIC = 0x48534b49;
+    private static final int VERSION = 3;
+
+    private final String fingerprint;
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean modified = false;
+
+    public CallGraphIndex(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public static CallGraphIndex load(File file, String fingerprint) {
+        CallGraphIndex index = new CallGraphIndex(fingerprint);
+        if (!file.isFile())
+            return index;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(fingerprint))
+                    return index;
+
+                String[] strings = new String[in.readInt()];
+                for (int i = 0; i < strings.length; i++)
+                    strings[i] = in.readUTF();
+
+                int classes = in.readInt();
+                HashMap<String, Entry> entries = new HashMap<String, Entry>(classes * 2);
+                for (int i = 0; i < classes; i++) {
+                    String name = strings[in.readInt()];
+                    long hash = in.readLong();
+                    long size = in.readLong();
+                    long modified = in.readLong();
+                    int edges = in.readInt();
+
+                    String[] callers = new String[edges];
+                    String[] callees = new String[edges];
+                    int[] counts = new int[edges];
+                    for (int j = 0; j < edges; j++) {
+                        callers[j] = strings[in.readInt()];
+                        callees[j] = strings[in.readInt()];
+                        counts[j] = in.readInt();
+                    }
+
+                    entries.put(name, new Entry(hash, size, modified, callers, callees, counts));
+                }
+
+                index.entries = entries;
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // a truncated index is rebuilt like a missing one
+        } catch (IOException e) {
+            // so is one that cannot be read
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // or one with a corrupt string reference
+        }
+
+        return index;
+    }
+
+    public void store(File file) throws IOException {
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        ArrayList<String> strings = new ArrayList<String>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            intern(entry.getKey(), ids, strings);
+            Entry edges = entry.getValue();
+            for (int i = 0; i < edges.counts.length; i++) {
+                intern(edges.callers[i], ids, strings);
+                intern(edges.callees[i], ids, strings);
+            }
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(strings.size());
+            for (String string : strings)
+                out.writeUTF(string);
+
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry edges = entry.getValue();
+                out.writeInt(ids.get(entry.getKey()));
+                out.writeLong(edges.hash);
+                out.writeLong(edges.size);
+                out.writeLong(edges.modified);
+                out.writeInt(edges.counts.length);
+                for (int i = 0; i < edges.counts.length; i++) {
+                    out.writeInt(ids.get(edges.callers[i]));
+                    out.writeInt(ids.get(edges.callees[i]));
+                    out.writeInt(edges.counts[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("cannot store call graph index: " + file);
+        }
+        modified = false;
+    }
+
+    /*
+     * True when replace() changed the index since it was loaded or stored.
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /*
+     * Makes entries the whole index; returns the number of classes that
+     * were indexed before but are not in entries.
+     */
+    int replace(HashMap<String, Entry> entries) {
+        int removed = 0;
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+            if (entries.get(entry.getKey()) != entry.getValue()) {
+                modified = true;
+                if (!entries.containsKey(entry.getKey()))
+                    removed++;
+            }
+        }
+
+        if (entries.size() != this.entries.size() - removed)
+            modified = true;
+
+        this.entries = entries;
+        return removed;
+    }
+
+    private static void intern(String string, HashMap<String, Integer> ids, ArrayList<String> strings) {
+        if (!ids.containsKey(string)) {
+            ids.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+
+    static class Entry {
+        final long hash;
+        final long size;
+        final long modified;
+        final String[] callers;
+        final String[] callees;
+        final int[] counts;
+
+        Entry(long hash, long size, long modified, String[] callers, String[] callees, int[] counts) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            this.callers = callers;
+            this.callees = callees;
+            this.counts = counts;
+        }
+
+        static Entry of(long hash, long size, long modified, CallGraph graph) {
+            int edges = graph.getEdgeCount();
+            String[] callers = new String[edges];
+            String[] callees = new String[edges];
+            int[] counts = new int[edges];
+
+            int i = 0;
+            for (String caller : graph.getCallers()) {
+                for (String callee : graph.getCallees(caller)) {
+                    callers[i] = caller;
+                    callees[i] = callee;
+                    counts[i] = (int) graph.getCount(caller, callee);
+                    i++;
+                }
+            }
+
+            return new Entry(hash, size, modified, callers, callees, counts);
+        }
+
+        boolean isUnchanged(long size, long modified) {
+            return modified != 0 && this.modified == modified && this.size == size;
+        }
+
+        /*
+         * The same edges with another size and modification time, for a
+         * class file that was touched but not changed.
+         */
+        Entry restamp(long size, long modified) {
+            if (this.size == size && this.modified == modified)
+                return this;
+            return new Entry(hash, size, modified, callers, callees, counts);
+        }
+
+        void addTo(CallGraph graph) {
+            for (int i = 0; i < counts.length; i++)
+                graph.addEdge(callers[i], callees[i], counts[i]);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.husky.graph;
+
+import org.husky.CallSite;
+import org.husky.CallSiteRegistry;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/*
+ * Nodes are call-site IDs in parallel primitive arrays; node 0 is a virtual
+ * root whose children are the thread roots. Children are found through one
+ * open-addressing table keyed by (parent node, call site), so a node costs
+ * a few dozen bytes and the tree grows only with the number of distinct
+ * paths. Nodes are appended after their parent, which lets merge() map them
+ * in one forward scan.
+ *
+ * The agent keys nodes by call-site ID; FlameGraphExporter reuses the tree
+ * with interned frame names as keys, for which getName() does not apply.
+ *
+ * Only one thread may add nodes. Other threads can read a consistent prefix
+ * of the nodes through size(); counts of that prefix may lag behind.
+ */
+public class CallingContextTree {
+    public static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final long EMPTY = -1L;
+
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] callSites = new int[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private volatile int size = 1;
+
+    private long[] keys = newKeys(INITIAL_CAPACITY * 2);
+    private int[] values = new int[INITIAL_CAPACITY * 2];
+
+    public CallingContextTree() {
+        parents[ROOT] = -1;
+        callSites[ROOT] = -1;
+    }
+
+    public int child(int parent, int callSite) {
+        long key = ((long) parent << 32) | (callSite & 0xffffffffL);
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key)
+                return values[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        int node = size;
+        if (node == parents.length)
+            growNodes();
+
+        parents[node] = parent;
+        callSites[node] = callSite;
+        keys[slot] = key;
+        values[slot] = node;
+        size = node + 1;
+
+        if ((node + 1) * 2 > keys.length)
+            growTable();
+
+        return node;
+    }
+
+    public void increment(int node) {
+        counts[node]++;
+    }
+
+    public void add(int node, long count) {
+        counts[node] += count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getKey(int node) {
+        return callSites[node];
+    }
+
+    public int getCallSite(int node) {
+        return callSites[node];
+    }
+
+    public long getCount(int node) {
+        return counts[node];
+    }
+
+    public boolean isThreadRoot(int node) {
+        return parents[node] == ROOT;
+    }
+
+    public String getName(int node) {
+        CallSite site = CallSiteRegistry.get(callSites[node]);
+        return isThreadRoot(node)
+                ? site.callerClass + "." + site.callerMethod
+                : site.calleeClass + "." + site.calleeMethod;
+    }
+
+    public int getLine(int node) {
+        return isThreadRoot(node) ? 0 : CallSiteRegistry.get(callSites[node]).line;
+    }
+
+    public void merge(CallingContextTree tree) {
+        int n = tree.size();
+        int[] treeParents = tree.parents;
+        int[] treeCallSites = tree.callSites;
+        long[] treeCounts = tree.counts;
+
+        int[] mapped = new int[n];
+        mapped[ROOT] = ROOT;
+        for (int i = 1; i < n; i++) {
+            int node = child(mapped[treeParents[i]], treeCallSites[i]);
+            counts[node] += treeCounts[i];
+            mapped[i] = node;
+        }
+    }
+
+    public interface Visitor {
+        void visit(int node, int depth) throws IOException;
+    }
+
+    /*
+     * Visits the nodes depth-first, children in the order they were added.
+     * Thread roots have depth 0.
+     */
+    public void walk(Visitor visitor) throws IOException {
+        int n = size;
+        int[] firstChild = new int[n];
+        int[] nextSibling = new int[n];
+        Arrays.fill(firstChild, -1);
+        for (int i = n - 1; i > 0; i--) {
+            nextSibling[i] = firstChild[parents[i]];
+            firstChild[parents[i]] = i;
+        }
+
+        int[] stack = new int[16];
+        int[] depths = new int[16];
+        int top = 0;
+        int node = ROOT;
+        int depth = -1;
+        while (true) {
+            int start = top;
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top << 1);
+                    depths = Arrays.copyOf(depths, top << 1);
+                }
+                stack[top] = child;
+                depths[top++] = depth + 1;
+            }
+            reverse(stack, depths, start, top);
+
+            if (top == 0)
+                break;
+
+            node = stack[--top];
+            depth = depths[top];
+            visitor.visit(node, depth);
+        }
+    }
+
+    /*
+     * One node per line: indentation, class.method, line, count.
+     */
+    public void write(final Writer writer) throws IOException {
+        walk(new Visitor() {
+            public void visit(int node, int depth) throws IOException {
+                for (int i = 0; i < depth; i++)
+                    writer.write("  ");
+                writer.write(getName(node));
+                writer.write(' ');
+                writer.write(Integer.toString(getLine(node)));
+                writer.write(' ');
+                writer.write(Long.toString(counts[node]));
+                writer.write('\n');
+            }
+        });
+        writer.flush();
+    }
+
+    private void growNodes() {
+        int length = parents.length << 1;
+        callSites = Arrays.copyOf(callSites, length);
+        counts = Arrays.copyOf(counts, length);
+        parents = Arrays.copyOf(parents, length);
+    }
+
+    private void growTable() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        long[] grownKeys = newKeys(oldKeys.length << 1);
+        int[] grownValues = new int[oldKeys.length << 1];
+
+        int mask = grownKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+
+            int slot = hash(oldKeys[i]) & mask;
+            while (grownKeys[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            grownKeys[slot] = oldKeys[i];
+            grownValues[slot] = oldValues[i];
+        }
+
+        keys = grownKeys;
+        values = grownValues;
+    }
+
+    private static void reverse(int[] stack, int[] depths, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            int node = stack[i];
+            stack[i] = stack[j];
+            stack[j] = node;
+
+            int depth = depths[i];
+            depths[i] = depths[j];
+            depths[j] = depth;
+        }
+    }
+
+    private static int hash(long key) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32);
+    }
+
+    private static long[] newKeys(int length) {
+        long[] keys = new long[length];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+}
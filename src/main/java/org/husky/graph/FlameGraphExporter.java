@@ -0,0 +1,410 @@
+package org.husky.graph;
+
+import org.husky.trace.CompressedLogFormat;
+import org.husky.trace.CompressedLogInputStream;
+import org.husky.trace.TraceFormat;
+import org.husky.trace.TraceReader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Writes collapsed stacks ("a;b;c count", count = calls of that exact path)
+ * from a CallingContextTree, or from LogProcessor files and .trace files.
+ * A shared log sink starts each line with the thread id and gets a stack
+ * per thread, dropped again when that thread returns to its root.
+ *
+ * Input files are streamed one line/event at a time on a pool of threads,
+ * each into its own tree keyed by interned frame names, and the trees are
+ * merged before writing, so memory depends on the number of distinct paths
+ * rather than on the size of the input.
+ *
+ * Stacks are rebuilt from the frame and caller IDs: a start pops frames
+ * until its caller is on top, a finish pops down to its own frame, and a
+ * thread's root call (logged as its own caller) starts a new stack. Frames
+ * unwound by an exception have no finish record and are dropped by the next
+ * start or finish below them.
+ *
+ * Compressed logs have their blocks decompressed on a second pool while
+ * they are parsed, and the segments "<name>.<n>" of a rotated log are read
+ * in order as one file, so stacks carry over from one segment to the next.
+ */
+public class FlameGraphExporter {
+    private static final int INITIAL_DEPTH = 64;
+    private static final int DECOMPRESS_LOOKAHEAD = 8;
+
+    private final ConcurrentHashMap<String, Integer> frameIds = new ConcurrentHashMap<String, Integer>();
+    private final ArrayList<String> frameNames = new ArrayList<String>();
+    private ExecutorService decompressors;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("usage: FlameGraphExporter <output file|-> <log or trace file>...");
+            System.exit(1);
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++) {
+            files.add(new File(args[i]));
+        }
+
+        boolean toFile = !args[0].equals("-");
+        Writer out = toFile ? new FileWriter(args[0]) : new OutputStreamWriter(System.out);
+
+        BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+        try {
+            new FlameGraphExporter().export(files, writer,
+                    Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+        } finally {
+            writer.flush();
+            if (toFile)
+                writer.close();
+        }
+    }
+
+    public void export(List<File> files, Writer writer, int threads) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        decompressors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<CallingContextTree>> futures = new ArrayList<Future<CallingContextTree>>();
+            for (final List<File> segments : groupSegments(files)) {
+                futures.add(executor.submit(new Callable<CallingContextTree>() {
+                    public CallingContextTree call() throws IOException {
+                        return read(segments);
+                    }
+                }));
+            }
+
+            CallingContextTree merged = new CallingContextTree();
+            for (Future<CallingContextTree> future : futures) {
+                merged.merge(get(future));
+            }
+
+            writeCollapsed(merged, new ArrayList<String>(frameNames), writer);
+        } finally {
+            executor.shutdownNow();
+            decompressors.shutdownNow();
+            decompressors = null;
+        }
+    }
+
+    public CallingContextTree read(File file) throws IOException {
+        List<File> segments = new ArrayList<File>();
+        segments.add(file);
+        return read(segments);
+    }
+
+    /*
+     * Reads the segments of one log in order into one tree.
+     */
+    public CallingContextTree read(List<File> segments) throws IOException {
+        if (segments.size() == 1 && segments.get(0).getName().endsWith(TraceFormat.FILE_SUFFIX))
+            return readTrace(segments.get(0));
+
+        return readLog(segments);
+    }
+
+    /*
+     * Groups the segments "<name>.<n>[.hlz]" of a rotated log by name, in
+     * segment order; any other file is a group of its own.
+     */
+    public static List<List<File>> groupSegments(List<File> files) {
+        LinkedHashMap<String, TreeMap<Long, File>> groups = new LinkedHashMap<String, TreeMap<Long, File>>();
+        for (File file : files) {
+            String name = file.getPath();
+            String suffix = "";
+            if (name.endsWith(CompressedLogFormat.FILE_SUFFIX)) {
+                suffix = CompressedLogFormat.FILE_SUFFIX;
+                name = name.substring(0, name.length() - suffix.length());
+            }
+
+            int dot = name.lastIndexOf('.');
+            int digits = dot + 1;
+            while (digits < name.length() && Character.isDigit(name.charAt(digits)))
+                digits++;
+
+            TreeMap<Long, File> group;
+            if (dot > 0 && dot + 1 < name.length() && digits == name.length() && digits - dot <= 18) {
+                String key = name.substring(0, dot) + suffix;
+                if ((group = groups.get(key)) == null) {
+                    group = new TreeMap<Long, File>();
+                    groups.put(key, group);
+                }
+                group.put(Long.valueOf(name.substring(dot + 1)), file);
+            } else {
+                group = new TreeMap<Long, File>();
+                group.put(-1L, file);
+                groups.put(file.getPath() + "\0" + groups.size(), group);
+            }
+        }
+
+        List<List<File>> segments = new ArrayList<List<File>>();
+        for (TreeMap<Long, File> group : groups.values())
+            segments.add(new ArrayList<File>(group.values()));
+        return segments;
+    }
+
+    /*
+     * frameNames is null for trees built by the agent, whose keys are
+     * call-site IDs.
+     */
+    public static void writeCollapsed(final CallingContextTree tree,
+                                      final List<String> frameNames,
+                                      final Writer writer) throws IOException
+    {
+        final StringBuilder path = new StringBuilder();
+        final int[][] lengths = {new int[INITIAL_DEPTH]};
+
+        tree.walk(new CallingContextTree.Visitor() {
+            public void visit(int node, int depth) throws IOException {
+                if (depth == lengths[0].length) {
+                    int[] grown = new int[depth << 1];
+                    System.arraycopy(lengths[0], 0, grown, 0, depth);
+                    lengths[0] = grown;
+                }
+
+                path.setLength(depth == 0 ? 0 : lengths[0][depth - 1]);
+                if (depth > 0)
+                    path.append(';');
+                path.append(frameNames == null ? tree.getName(node) : frameNames.get(tree.getKey(node)));
+                lengths[0][depth] = path.length();
+
+                long count = tree.getCount(node);
+                if (count == 0)
+                    return;
+
+                writer.append(path);
+                writer.write(' ');
+                writer.write(Long.toString(count));
+                writer.write('\n');
+            }
+        });
+        writer.flush();
+    }
+
+    private CallingContextTree readLog(List<File> segments) throws IOException {
+        StackBuilder stack = new StackBuilder();
+        HashMap<Long, StackBuilder> threadStacks = new HashMap<Long, StackBuilder>();
+        for (File file : segments)
+            readLog(file, stack, threadStacks);
+        return stack.tree;
+    }
+
+    private void readLog(File file, StackBuilder stack, HashMap<Long, StackBuilder> threadStacks)
+            throws IOException
+    {
+        BufferedReader reader = new BufferedReader(openLog(file), 1 << 16);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2)
+                    continue;
+
+                StackBuilder builder = stack;
+                Long thread = null;
+                int start = 0;
+                if (Character.isDigit(line.charAt(0))) {
+                    start = line.indexOf(' ') + 1;
+                    if (start == 0 || line.length() < start + 2)
+                        throw new IOException("bad log line in " + file + ": " + line);
+
+                    thread = Long.valueOf(line.substring(0, start - 1));
+                    builder = threadStacks.get(thread);
+                    if (builder == null) {
+                        builder = new StackBuilder(stack);
+                        threadStacks.put(thread, builder);
+                    }
+                }
+
+                char type = line.charAt(start);
+                int idEnd = line.indexOf(' ', start + 2);
+                int callerIdEnd = line.indexOf(' ', idEnd + 1);
+                int calleeEnd = line.indexOf(' ', callerIdEnd + 1);
+                int callerEnd = line.indexOf(' ', calleeEnd + 1);
+                if (idEnd < 0 || callerIdEnd < 0 || calleeEnd < 0 || callerEnd < 0)
+                    throw new IOException("bad log line in " + file + ": " + line);
+
+                int id = Integer.parseInt(line.substring(start + 2, idEnd));
+                if (type == '+') {
+                    builder.start(id,
+                            Integer.parseInt(line.substring(idEnd + 1, callerIdEnd)),
+                            line.substring(callerIdEnd + 1, calleeEnd),
+                            line.substring(calleeEnd + 1, callerEnd));
+                } else if (type == '-') {
+                    builder.finish(id);
+                    if (thread != null && builder.isAtRoot())
+                        threadStacks.remove(thread);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Reader openLog(File file) throws IOException {
+        if (!file.getName().endsWith(CompressedLogFormat.FILE_SUFFIX))
+            return new FileReader(file);
+
+        return new InputStreamReader(new CompressedLogInputStream(file, decompressors, DECOMPRESS_LOOKAHEAD));
+    }
+
+    private CallingContextTree readTrace(File file) throws IOException {
+        StackBuilder stack = new StackBuilder();
+        TraceReader reader = new TraceReader(file);
+        try {
+            int tag;
+            while ((tag = reader.next()) != TraceFormat.END) {
+                if (tag == TraceFormat.CALL_START) {
+                    stack.start(reader.getId(), reader.getCallerId(),
+                            reader.getCalleeName(), reader.getCallerName());
+                } else if (tag == TraceFormat.CALL_FINISH) {
+                    stack.finish(reader.getId());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return stack.tree;
+    }
+
+    private int frameId(String name) {
+        Integer id = frameIds.get(name);
+        if (id != null)
+            return id;
+
+        synchronized (frameNames) {
+            id = frameIds.get(name);
+            if (id == null) {
+                id = frameNames.size();
+                frameNames.add(name);
+                frameIds.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    private static CallingContextTree get(Future<CallingContextTree> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private class StackBuilder {
+        final CallingContextTree tree;
+
+        private final HashMap<String, Integer> localFrameIds;
+        private int[] ids = new int[INITIAL_DEPTH];
+        private int[] frames = new int[INITIAL_DEPTH];
+        private int[] nodes = new int[INITIAL_DEPTH];
+        private int top = -1;
+
+        StackBuilder() {
+            tree = new CallingContextTree();
+            localFrameIds = new HashMap<String, Integer>();
+        }
+
+        /*
+         * A stack of another thread building into the same tree.
+         */
+        StackBuilder(StackBuilder shared) {
+            tree = shared.tree;
+            localFrameIds = shared.localFrameIds;
+        }
+
+        boolean isAtRoot() {
+            return top <= 0;
+        }
+
+        void start(int id, int callerId, String callee, String caller) {
+            if (id == callerId) {
+                int frame = localFrameId(callee);
+                int node = tree.child(CallingContextTree.ROOT, frame);
+                tree.increment(node);
+                top = -1;
+                push(id, frame, node);
+                return;
+            }
+
+            int callerFrame = localFrameId(caller);
+            while (top >= 0 && (ids[top] != callerId || frames[top] != callerFrame))
+                top--;
+
+            if (top < 0)
+                push(callerId, callerFrame, tree.child(CallingContextTree.ROOT, callerFrame));
+
+            int calleeFrame = localFrameId(callee);
+            int node = tree.child(nodes[top], calleeFrame);
+            tree.increment(node);
+            push(id, calleeFrame, node);
+        }
+
+        void finish(int id) {
+            for (int i = top; i >= 0; i--) {
+                if (ids[i] == id) {
+                    top = i - 1;
+                    return;
+                }
+            }
+        }
+
+        private void push(int id, int frame, int node) {
+            int depth = top + 1;
+            if (depth == ids.length) {
+                int length = ids.length << 1;
+
+                int[] grownIds = new int[length];
+                System.arraycopy(ids, 0, grownIds, 0, ids.length);
+                ids = grownIds;
+
+                int[] grownFrames = new int[length];
+                System.arraycopy(frames, 0, grownFrames, 0, frames.length);
+                frames = grownFrames;
+
+                int[] grownNodes = new int[length];
+                System.arraycopy(nodes, 0, grownNodes, 0, nodes.length);
+                nodes = grownNodes;
+            }
+
+            ids[depth] = id;
+            frames[depth] = frame;
+            nodes[depth] = node;
+            top = depth;
+        }
+
+        private int localFrameId(String name) {
+            Integer id = localFrameIds.get(name);
+            if (id == null) {
+                id = frameId(name);
+                localFrameIds.put(name, id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,685 @@
+package org.husky.graph;
+
+import org.husky.trace.CompressedLogFormat;
+import org.husky.trace.CompressedLogInputStream;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Builds a call graph with call counts from LogProcessor files: per-thread
+ * files, shared sinks whose lines start with a thread id, compressed files
+ * and the segments of rotated logs, which are read in order as one log.
+ * The edge list has CallGraph's format, so it can be diffed against
+ * CallGraphProcessor's output of the same run.
+ *
+ * Logs are processed on a fork/join pool, one log per task. A plain file is
+ * memory-mapped in windows and parsed in place: a name is hashed straight
+ * from the mapped bytes and only copied the first time the task sees it,
+ * and edges are counted in a map keyed by the two name ids, so no String
+ * is created per line. Compressed files are decompressed on a second pool
+ * while they are parsed.
+ *
+ * Frames are rebuilt per thread from the frame and caller IDs as in
+ * FlameGraphExporter: a start pops frames until its caller is on top, and
+ * its edge runs from that frame to the new one; a finish pops down to its
+ * own frame. Frames popped without their own finish were unwound by an
+ * exception, and are counted in the summary with finishes that match no
+ * frame and frames still open at the end.
+ */
+public class LogAnalyzer {
+    private static final long WINDOW_SIZE = 256 << 20;
+    private static final int STREAM_BUFFER_SIZE = 1 << 20;
+    private static final int DECOMPRESS_LOOKAHEAD = 8;
+    private static final long NO_THREAD = Long.MIN_VALUE;
+
+    private final Charset charset = Charset.defaultCharset();
+    private final Summary summary = new Summary();
+    private ExecutorService decompressors;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: LogAnalyzer <output file|-> <log file>...");
+            System.exit(1);
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++)
+            files.add(new File(args[i]));
+
+        LogAnalyzer analyzer = new LogAnalyzer();
+        long start = System.nanoTime();
+        CallGraph graph = analyzer.analyze(files);
+        long millis = (System.nanoTime() - start) / 1000000L;
+
+        boolean toFile = !args[0].equals("-");
+        Writer out = toFile ? new FileWriter(args[0]) : new OutputStreamWriter(System.out);
+
+        BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+        try {
+            graph.write(writer);
+        } finally {
+            writer.flush();
+            if (toFile)
+                writer.close();
+        }
+
+        analyzer.getSummary().print(System.err, graph, millis);
+    }
+
+    public CallGraph analyze(List<File> files) throws IOException {
+        List<List<File>> logs = FlameGraphExporter.groupSegments(files);
+        if (logs.isEmpty())
+            return new CallGraph();
+
+        ForkJoinPool pool = new ForkJoinPool();
+        decompressors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            LogResult result = pool.invoke(new AnalyzeTask(logs, 0, logs.size()));
+            if (result.error != null)
+                throw result.error;
+
+            summary.add(result.summary);
+            return result.graph;
+        } finally {
+            pool.shutdown();
+            decompressors.shutdownNow();
+            decompressors = null;
+        }
+    }
+
+    public Summary getSummary() {
+        return summary;
+    }
+
+    private LogResult analyzeLog(List<File> segments) {
+        LogParser parser = new LogParser();
+        try {
+            for (File file : segments) {
+                parser.summary.files++;
+                if (file.getName().endsWith(CompressedLogFormat.FILE_SUFFIX)) {
+                    parseCompressed(file, parser);
+                } else {
+                    parseMapped(file, parser);
+                }
+            }
+        } catch (IOException e) {
+            return new LogResult(e);
+        }
+
+        return parser.finish();
+    }
+
+    private void parseMapped(File file, LogParser parser) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(WINDOW_SIZE, size - position);
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+
+                int parsed = parser.parse(window, (int) length, last);
+                if (parsed == 0 && !last)
+                    throw new IOException("line longer than " + WINDOW_SIZE + " bytes at " + position + ": " + file);
+
+                position += parsed;
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void parseCompressed(File file, LogParser parser) throws IOException {
+        InputStream in = new CompressedLogInputStream(file, decompressors, DECOMPRESS_LOOKAHEAD);
+        try {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int length = 0;
+            int n;
+            while ((n = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+                int parsed = parser.parse(ByteBuffer.wrap(buffer), length, false);
+
+                if (parsed == 0 && length == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length << 1);
+                System.arraycopy(buffer, parsed, buffer, 0, length - parsed);
+                length -= parsed;
+            }
+
+            parser.parse(ByteBuffer.wrap(buffer), length, true);
+        } finally {
+            in.close();
+        }
+    }
+
+    private class AnalyzeTask extends RecursiveTask<LogResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<List<File>> logs;
+        private final int from;
+        private final int to;
+
+        AnalyzeTask(List<List<File>> logs, int from, int to) {
+            this.logs = logs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected LogResult compute() {
+            if (to - from == 1)
+                return analyzeLog(logs.get(from));
+
+            int middle = (from + to) >>> 1;
+            AnalyzeTask left = new AnalyzeTask(logs, from, middle);
+            AnalyzeTask right = new AnalyzeTask(logs, middle, to);
+            left.fork();
+            LogResult result = right.compute();
+            return left.join().merge(result);
+        }
+    }
+
+    private static class LogResult {
+        final CallGraph graph;
+        final Summary summary;
+        final IOException error;
+
+        LogResult(CallGraph graph, Summary summary) {
+            this.graph = graph;
+            this.summary = summary;
+            this.error = null;
+        }
+
+        LogResult(IOException error) {
+            this.graph = null;
+            this.summary = null;
+            this.error = error;
+        }
+
+        LogResult merge(LogResult other) {
+            if (error != null)
+                return this;
+            if (other.error != null)
+                return other;
+
+            graph.merge(other.graph);
+            summary.add(other.summary);
+            return this;
+        }
+    }
+
+    /*
+     * Counts of the analyzed logs. bytes counts the log bytes parsed, after
+     * decompression for compressed files. threads counts thread ids per log,
+     * so a thread whose lines are spread over several files counts once per
+     * file.
+     */
+    public static class Summary {
+        public long files;
+        public long bytes;
+        public long lines;
+        public long badLines;
+        public long starts;
+        public long finishes;
+        public long throwns;
+        public long threads;
+        public int maxDepth;
+        public long unwoundFrames;
+        public long unmatchedFinishes;
+        public long openFrames;
+
+        void add(Summary other) {
+            files += other.files;
+            bytes += other.bytes;
+            lines += other.lines;
+            badLines += other.badLines;
+            starts += other.starts;
+            finishes += other.finishes;
+            throwns += other.throwns;
+            threads += other.threads;
+            maxDepth = Math.max(maxDepth, other.maxDepth);
+            unwoundFrames += other.unwoundFrames;
+            unmatchedFinishes += other.unmatchedFinishes;
+            openFrames += other.openFrames;
+        }
+
+        public void print(PrintStream out, CallGraph graph, long millis) {
+            HashSet<String> methods = new HashSet<String>(graph.getCallers());
+            for (String caller : graph.getCallers())
+                methods.addAll(graph.getCallees(caller));
+
+            long mb = bytes >> 20;
+            out.println(files + " files, " + mb + " MB in " + millis + " ms (" +
+                    (millis > 0 ? mb * 1000 / millis : mb) + " MB/s)");
+            out.println(lines + " lines: " + starts + " starts, " + finishes + " finishes, " + throwns +
+                    " throws, " + badLines + " bad");
+            out.println(threads + " threads, max depth " + maxDepth + ", " + methods.size() + " methods, " +
+                    graph.getEdgeCount() + " edges");
+            out.println(unwoundFrames + " frames unwound by exceptions, " + unmatchedFinishes +
+                    " finishes without a frame, " + openFrames + " frames open at the end");
+        }
+    }
+
+    /*
+     * Parses the lines of one log. Not thread-safe; every task has its own.
+     */
+    private class LogParser {
+        final Summary summary = new Summary();
+
+        private final NameTable names = new NameTable();
+        private final EdgeTable edges = new EdgeTable();
+        private final ThreadTable threads = new ThreadTable();
+
+        private long lastThread = NO_THREAD;
+        private Frames lastFrames;
+
+        /*
+         * Parses the lines in buffer[0, limit) and returns the offset after
+         * the last one; a line without its newline is only parsed when last.
+         * The bytes up to that offset are added to summary.bytes.
+         */
+        int parse(ByteBuffer buffer, int limit, boolean last) {
+            int position = 0;
+            while (position < limit) {
+                int end = position;
+                while (end < limit && buffer.get(end) != '\n')
+                    end++;
+
+                if (end == limit && !last) {
+                    summary.bytes += position;
+                    return position;
+                }
+
+                int lineEnd = end;
+                if (lineEnd > position && buffer.get(lineEnd - 1) == '\r')
+                    lineEnd--;
+                if (lineEnd > position) {
+                    summary.lines++;
+                    if (!parseLine(buffer, position, lineEnd))
+                        summary.badLines++;
+                }
+
+                position = end + 1;
+            }
+            summary.bytes += limit;
+            return limit;
+        }
+
+        /*
+         * [thread id ' '] type ' ' id ' ' caller id ' ' callee ' ' caller ' ' line
+         */
+        private boolean parseLine(ByteBuffer buffer, int start, int end) {
+            int p = start;
+            long thread = NO_THREAD;
+            if (isDigit(buffer.get(p))) {
+                thread = 0;
+                while (p < end && isDigit(buffer.get(p)))
+                    thread = thread * 10 + (buffer.get(p++) - '0');
+                if (p == end || buffer.get(p++) != ' ')
+                    return false;
+            }
+
+            if (end - p < 2 || buffer.get(p + 1) != ' ')
+                return false;
+            byte type = buffer.get(p);
+            p += 2;
+
+            int idEnd = indexOf(buffer, p, end);
+            if (idEnd < 0)
+                return false;
+            int callerIdEnd = indexOf(buffer, idEnd + 1, end);
+            if (callerIdEnd < 0)
+                return false;
+            int calleeEnd = indexOf(buffer, callerIdEnd + 1, end);
+            if (calleeEnd < 0)
+                return false;
+            int callerEnd = indexOf(buffer, calleeEnd + 1, end);
+            if (callerEnd < 0)
+                return false;
+
+            int id = parseInt(buffer, p, idEnd);
+            int callerId = parseInt(buffer, idEnd + 1, callerIdEnd);
+            if (id < 0 || callerId < 0)
+                return false;
+
+            Frames frames = frames(thread);
+            if (type == '+') {
+                summary.starts++;
+                int callee = names.id(buffer, callerIdEnd + 1, calleeEnd);
+                if (id == callerId) {
+                    summary.unwoundFrames += frames.size();
+                    frames.reset(false);
+                    frames.push(id, callee);
+                } else {
+                    int caller = names.id(buffer, calleeEnd + 1, callerEnd);
+                    start(frames, id, callerId, callee, caller);
+                }
+                summary.maxDepth = Math.max(summary.maxDepth, frames.top + 1);
+            } else if (type == '-') {
+                summary.finishes++;
+                finish(frames, id);
+            } else if (type == '*') {
+                summary.throwns++;
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private void start(Frames frames, int id, int callerId, int callee, int caller) {
+            int top = frames.top;
+            while (top >= 0 && (frames.ids[top] != callerId || frames.names[top] != caller))
+                top--;
+
+            if (top < 0) {
+                summary.unwoundFrames += frames.size();
+                frames.reset(true);
+                frames.push(callerId, caller);
+            } else {
+                summary.unwoundFrames += frames.top - top;
+                frames.top = top;
+            }
+
+            edges.increment(frames.names[frames.top], callee);
+            frames.push(id, callee);
+        }
+
+        private void finish(Frames frames, int id) {
+            for (int i = frames.top; i >= 0; i--) {
+                if (frames.ids[i] == id) {
+                    summary.unwoundFrames += frames.top - i;
+                    frames.top = i - 1;
+                    return;
+                }
+            }
+            summary.unmatchedFinishes++;
+        }
+
+        private Frames frames(long thread) {
+            if (thread == lastThread && lastFrames != null)
+                return lastFrames;
+
+            Frames frames = threads.get(thread);
+            if (frames == null) {
+                frames = new Frames();
+                threads.put(thread, frames);
+                summary.threads++;
+            }
+
+            lastThread = thread;
+            lastFrames = frames;
+            return frames;
+        }
+
+        LogResult finish() {
+            for (Frames frames : threads.values())
+                summary.openFrames += frames.size();
+
+            String[] strings = new String[names.size];
+            for (int i = 0; i < names.size; i++)
+                strings[i] = new String(names.bytes[i], charset);
+
+            CallGraph graph = new CallGraph();
+            for (int i = 0; i < edges.keys.length; i++) {
+                long key = edges.keys[i];
+                if (key != EdgeTable.EMPTY)
+                    graph.addEdge(strings[(int) (key >>> 32)], strings[(int) key], edges.counts[i]);
+            }
+
+            return new LogResult(graph, summary);
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buffer.get(i) == ' ')
+                return i;
+        }
+        return -1;
+    }
+
+    private static int parseInt(ByteBuffer buffer, int from, int to) {
+        if (from == to || to - from > 9)
+            return -1;
+
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (!isDigit(b))
+                return -1;
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /*
+     * A thread's stack. When the caller of a start is not on it, the stack
+     * restarts from a placeholder frame for that caller, which has no start
+     * or finish of its own and so is not counted by size().
+     */
+    private static class Frames {
+        int[] ids = new int[64];
+        int[] names = new int[64];
+        int top = -1;
+        boolean placeholder = false;
+
+        int size() {
+            return placeholder ? Math.max(top, 0) : top + 1;
+        }
+
+        void reset(boolean placeholder) {
+            this.placeholder = placeholder;
+            top = -1;
+        }
+
+        void push(int id, int name) {
+            int depth = top + 1;
+            if (depth == ids.length) {
+                ids = Arrays.copyOf(ids, depth << 1);
+                names = Arrays.copyOf(names, depth << 1);
+            }
+
+            ids[depth] = id;
+            names[depth] = name;
+            top = depth;
+        }
+    }
+
+    /*
+     * Interns names by their bytes; open addressing on the name hash.
+     */
+    private static class NameTable {
+        byte[][] bytes = new byte[1024][];
+        int size = 0;
+
+        private int[] hashes = new int[1024];
+        private int[] slots = new int[2048];
+
+        int id(ByteBuffer buffer, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++)
+                hash = 31 * hash + buffer.get(i);
+
+            int mask = slots.length - 1;
+            for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if (id < 0)
+                    return add(buffer, from, to, hash, slot);
+                if (hashes[id] == hash && equals(bytes[id], buffer, from, to))
+                    return id;
+            }
+        }
+
+        private int add(ByteBuffer buffer, int from, int to, int hash, int slot) {
+            byte[] name = new byte[to - from];
+            for (int i = 0; i < name.length; i++)
+                name[i] = buffer.get(from + i);
+
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size << 1);
+                hashes = Arrays.copyOf(hashes, size << 1);
+            }
+
+            int id = size++;
+            bytes[id] = name;
+            hashes[id] = hash;
+            slots[slot] = id + 1;
+
+            if (size * 2 > slots.length) {
+                int[] grown = new int[slots.length << 1];
+                int mask = grown.length - 1;
+                for (int i = 0; i < size; i++) {
+                    int s = mix(hashes[i]) & mask;
+                    while (grown[s] != 0)
+                        s = (s + 1) & mask;
+                    grown[s] = i + 1;
+                }
+                slots = grown;
+            }
+            return id;
+        }
+
+        private static boolean equals(byte[] name, ByteBuffer buffer, int from, int to) {
+            if (name.length != to - from)
+                return false;
+
+            for (int i = 0; i < name.length; i++) {
+                if (name[i] != buffer.get(from + i))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /*
+     * Call counts keyed by caller name id << 32 | callee name id.
+     */
+    private static class EdgeTable {
+        static final long EMPTY = -1;
+
+        long[] keys = newKeys(1024);
+        long[] counts = new long[1024];
+        private int size = 0;
+
+        void increment(int caller, int callee) {
+            long key = (long) caller << 32 | callee;
+            int mask = keys.length - 1;
+            int slot = mix((int) (key ^ key >>> 29)) & mask;
+            while (keys[slot] != key) {
+                if (keys[slot] == EMPTY) {
+                    keys[slot] = key;
+                    if (++size * 2 > keys.length) {
+                        grow();
+                        increment(caller, callee);
+                        return;
+                    }
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            counts[slot]++;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = newKeys(oldKeys.length << 1);
+            counts = new long[oldKeys.length << 1];
+
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                long key = oldKeys[i];
+                if (key == EMPTY)
+                    continue;
+
+                int slot = mix((int) (key ^ key >>> 29)) & mask;
+                while (keys[slot] != EMPTY)
+                    slot = (slot + 1) & mask;
+                keys[slot] = key;
+                counts[slot] = oldCounts[i];
+            }
+        }
+
+        private static long[] newKeys(int length) {
+            long[] keys = new long[length];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+    }
+
+    /*
+     * Frames by thread id, NO_THREAD for a per-thread file.
+     */
+    private static class ThreadTable {
+        private long[] keys = new long[16];
+        private Frames[] frames = new Frames[16];
+        private int size = 0;
+
+        Frames get(long thread) {
+            int mask = keys.length - 1;
+            for (int slot = mix((int) (thread ^ thread >>> 32)) & mask; frames[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == thread)
+                    return frames[slot];
+            }
+            return null;
+        }
+
+        void put(long thread, Frames value) {
+            if ((size + 1) * 2 > keys.length) {
+                long[] oldKeys = keys;
+                Frames[] oldFrames = frames;
+                keys = new long[oldKeys.length << 1];
+                frames = new Frames[oldKeys.length << 1];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldFrames[i] != null)
+                        put(oldKeys[i], oldFrames[i]);
+                }
+            }
+
+            int mask = keys.length - 1;
+            int slot = mix((int) (thread ^ thread >>> 32)) & mask;
+            while (frames[slot] != null)
+                slot = (slot + 1) & mask;
+            keys[slot] = thread;
+            frames[slot] = value;
+            size++;
+        }
+
+        List<Frames> values() {
+            List<Frames> values = new ArrayList<Frames>(size);
+            for (Frames f : frames) {
+                if (f != null)
+                    values.add(f);
+            }
+            return values;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash * -1640531535 ^ hash >>> 16;
+    }
+}
@@ -0,0 +1,532 @@
+package org.husky.graph;
+
+import org.husky.AgentOption;
+import org.husky.CallSite;
+import org.husky.MonitorMethodCallTransformer;
+import org.husky.PrefixFilter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.objectweb.asm.Opcodes.ASM7;
+
+/*
+ * Builds a call graph from class files without running them. Edges use the
+ * names and the include/exclude filtering of the agent, so the output can be
+ * diffed against CallGraphProcessor's; the count of an edge is its number
+ * of call sites rather than of calls.
+ *
+ * Classes are scanned on a fork/join pool. Jars are memory-mapped and their
+ * central directory is read directly, so every worker can inflate entries
+ * of the same jar at once, which ZipFile serializes. A class that appears
+ * more than once on the classpath is only scanned where it appears first,
+ * as a class loader would.
+ *
+ * With a CallGraphIndex, a class is only parsed when its hash differs from
+ * the indexed one; the edges of the others come from the index. The hash is
+ * the CRC-32 and size of the class bytes, which for a jar entry are read
+ * from the central directory without inflating it. A class file is only
+ * read to hash it when its size or modification time differs from the
+ * indexed one. A modification time less than MTIME_GRANULARITY_MILLIS
+ * before the scan is not indexed, since the file may still change within
+ * the same tick of a coarse file system clock.
+ */
+public class StaticCallGraph {
+    private static final int CLASSES_PER_TASK = 256;
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    private final PrefixFilter filter;
+    private final AtomicInteger scannedClasses = new AtomicInteger();
+    private final AtomicInteger reusedClasses = new AtomicInteger();
+    private final AtomicInteger failedClasses = new AtomicInteger();
+    private int removedClasses = 0;
+    private long stampLimit;
+
+    public StaticCallGraph(PrefixFilter filter) {
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int first = 0;
+        String options = null;
+        File indexFile = null;
+        while (args.length - first > 1) {
+            if (args[first].equals("-options")) {
+                options = args[first + 1];
+            } else if (args[first].equals("-index")) {
+                indexFile = new File(args[first + 1]);
+            } else {
+                break;
+            }
+            first += 2;
+        }
+
+        if (args.length - first < 2) {
+            System.err.println("usage: StaticCallGraph [-options <agent options>] [-index <index file>] " +
+                    "<output file|-> <jar or directory>...");
+            System.exit(1);
+        }
+
+        List<File> classpath = new ArrayList<File>();
+        for (int i = first + 1; i < args.length; i++) {
+            for (String path : args[i].split(File.pathSeparator)) {
+                if (path.length() > 0)
+                    classpath.add(new File(path));
+            }
+        }
+
+        AgentOption agentOption = new AgentOption(options);
+        StaticCallGraph scanner = new StaticCallGraph(MonitorMethodCallTransformer.createFilter(agentOption));
+
+        long start = System.nanoTime();
+        CallGraph graph;
+        CallGraphIndex index = null;
+        if (indexFile != null) {
+            index = CallGraphIndex.load(indexFile, agentOption.getInstrumentationFingerprint());
+            graph = scanner.scan(classpath, index);
+        } else {
+            graph = scanner.scan(classpath);
+        }
+        long millis = (System.nanoTime() - start) / 1000000L;
+
+        boolean toFile = !args[first].equals("-");
+        Writer out = toFile ? new FileWriter(args[first]) : new OutputStreamWriter(System.out);
+
+        BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+        try {
+            graph.write(writer);
+        } finally {
+            writer.flush();
+            if (toFile)
+                writer.close();
+        }
+
+        // stored only once the graph is written, so a failed write is rescanned
+        if (index != null && index.isModified())
+            index.store(indexFile);
+
+        System.err.println(scanner.getScannedClasses() + " classes scanned, " + scanner.getReusedClasses() +
+                " reused, " + scanner.getRemovedClasses() + " removed, " + scanner.getFailedClasses() + " failed, " +
+                graph.getEdgeCount() + " edges in " + millis + " ms");
+    }
+
+    public CallGraph scan(List<File> classpath) throws IOException {
+        return scan(classpath, new CallGraphIndex(""));
+    }
+
+    /*
+     * Updates index to the classes now on the classpath and returns the
+     * graph of all of them.
+     */
+    public CallGraph scan(List<File> classpath, CallGraphIndex index) throws IOException {
+        stampLimit = System.currentTimeMillis() - MTIME_GRANULARITY_MILLIS;
+
+        Set<String> names = new HashSet<String>();
+        List<ClassSource> sources = new ArrayList<ClassSource>();
+        for (File file : classpath) {
+            if (file.isDirectory()) {
+                collect(file, "", names, sources);
+            } else if (file.isFile()) {
+                new MappedJar(file).collect(names, sources);
+            }
+        }
+
+        CallGraphIndex.Entry[] entries = new CallGraphIndex.Entry[sources.size()];
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new ScanTask(sources, index, entries, 0, sources.size()));
+        } finally {
+            pool.shutdown();
+        }
+
+        CallGraph graph = new CallGraph();
+        HashMap<String, CallGraphIndex.Entry> current = new HashMap<String, CallGraphIndex.Entry>(entries.length * 2);
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == null)
+                continue;
+
+            entries[i].addTo(graph);
+            current.put(sources.get(i).name, entries[i]);
+        }
+        removedClasses = index.replace(current);
+
+        return graph;
+    }
+
+    public int getScannedClasses() {
+        return scannedClasses.get();
+    }
+
+    public int getReusedClasses() {
+        return reusedClasses.get();
+    }
+
+    public int getFailedClasses() {
+        return failedClasses.get();
+    }
+
+    public int getRemovedClasses() {
+        return removedClasses;
+    }
+
+    private void scanClass(byte[] bytes, final CallGraph graph) {
+        ClassReader reader = new ClassReader(bytes);
+        final String className = reader.getClassName();
+        if (MonitorMethodCallTransformer.isAgentClass(className) || !filter.acceptClass(className))
+            return;
+
+        reader.accept(new ClassVisitor(ASM7) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                             String signature, String[] exceptions)
+            {
+                final String caller = className + "." + name;
+                return new MethodVisitor(ASM7) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name,
+                                                String descriptor, boolean isInterface)
+                    {
+                        if (owner.startsWith("org/husky/") || !filter.acceptMethod(owner, name))
+                            return;
+
+                        graph.addEdge(caller, owner + "." + name, 1);
+                    }
+
+                    @Override
+                    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+                                                       Object... bootstrapMethodArguments)
+                    {
+                        graph.addEdge(caller, CallSite.LAMBDA_OWNER + "." + name, 1);
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+        scannedClasses.incrementAndGet();
+    }
+
+    private static void collect(File dir, String prefix, Set<String> names, List<ClassSource> sources) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                collect(file, name + "/", names, sources);
+            } else if (isClassEntry(name) && names.add(name)) {
+                sources.add(new FileSource(name, file));
+            }
+        }
+    }
+
+    private static boolean isClassEntry(String name) {
+        return name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class");
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ClassSource> sources;
+        private final CallGraphIndex index;
+        private final CallGraphIndex.Entry[] entries;
+        private final int from;
+        private final int to;
+
+        ScanTask(List<ClassSource> sources, CallGraphIndex index, CallGraphIndex.Entry[] entries, int from, int to) {
+            this.sources = sources;
+            this.index = index;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CLASSES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScanTask(sources, index, entries, from, middle),
+                        new ScanTask(sources, index, entries, middle, to));
+                return;
+            }
+
+            Inflater inflater = new Inflater(true);
+            try {
+                for (int i = from; i < to; i++) {
+                    ClassSource source = sources.get(i);
+                    try {
+                        source.stat();
+                        long modified = source.modified < stampLimit ? source.modified : 0;
+                        CallGraphIndex.Entry indexed = index.get(source.name);
+                        if (indexed != null && indexed.isUnchanged(source.size, modified)) {
+                            entries[i] = indexed;
+                            reusedClasses.incrementAndGet();
+                            continue;
+                        }
+
+                        long hash = source.hash();
+                        if (indexed != null && indexed.hash == hash) {
+                            entries[i] = indexed.restamp(source.size, modified);
+                            reusedClasses.incrementAndGet();
+                            continue;
+                        }
+
+                        CallGraph graph = new CallGraph();
+                        scanClass(source.read(inflater), graph);
+                        entries[i] = CallGraphIndex.Entry.of(hash, source.size, modified, graph);
+                    } catch (Exception e) {
+                        failedClasses.incrementAndGet();
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static abstract class ClassSource {
+        final String name;
+
+        /* set by stat(); a modified of 0 means the source is always hashed */
+        long size = 0;
+        long modified = 0;
+
+        ClassSource(String name) {
+            this.name = name;
+        }
+
+        void stat() {}
+
+        abstract long hash() throws IOException;
+
+        abstract byte[] read(Inflater inflater) throws IOException;
+    }
+
+    private static class FileSource extends ClassSource {
+        private final File file;
+        private byte[] bytes;
+
+        FileSource(String name, File file) {
+            super(name);
+            this.file = file;
+        }
+
+        void stat() {
+            size = file.length();
+            modified = file.lastModified();
+        }
+
+        long hash() throws IOException {
+            bytes = readFile();
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            return contentHash(crc.getValue(), bytes.length);
+        }
+
+        byte[] read(Inflater inflater) throws IOException {
+            byte[] read = bytes != null ? bytes : readFile();
+            bytes = null;
+            return read;
+        }
+
+        private byte[] readFile() throws IOException {
+            byte[] bytes = new byte[(int) file.length()];
+            InputStream in = new FileInputStream(file);
+            try {
+                int n = 0;
+                while (n < bytes.length) {
+                    int read = in.read(bytes, n, bytes.length - n);
+                    if (read < 0)
+                        throw new IOException("truncated class file: " + file);
+                    n += read;
+                }
+            } finally {
+                in.close();
+            }
+            return bytes;
+        }
+    }
+
+    private static class JarEntrySource extends ClassSource {
+        private final MappedJar jar;
+        private final int localHeader;
+        private final int method;
+        private final int crc;
+        private final int compressedSize;
+        private final int uncompressedSize;
+
+        JarEntrySource(String name, MappedJar jar, int localHeader, int method, int crc, int compressedSize,
+                       int uncompressedSize)
+        {
+            super(name);
+            this.jar = jar;
+            this.localHeader = localHeader;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+        }
+
+        void stat() {
+            size = uncompressedSize;
+        }
+
+        long hash() {
+            return contentHash(crc & 0xffffffffL, uncompressedSize);
+        }
+
+        byte[] read(Inflater inflater) throws IOException {
+            return jar.read(localHeader, method, compressedSize, uncompressedSize, inflater);
+        }
+    }
+
+    private static long contentHash(long crc, int size) {
+        return ((long) size << 32) | crc;
+    }
+
+    /*
+     * Only what a class scan needs of the zip format: no zip64, no
+     * encryption, stored or deflated entries. Reads use absolute offsets on
+     * duplicates of the mapping, so they need no locking.
+     */
+    private static class MappedJar {
+        private static final int END_HEADER = 0x06054b50;
+        private static final int END_HEADER_SIZE = 22;
+        private static final int CENTRAL_HEADER = 0x02014b50;
+        private static final int CENTRAL_HEADER_SIZE = 46;
+        private static final int LOCAL_HEADER = 0x04034b50;
+        private static final int LOCAL_HEADER_SIZE = 30;
+        private static final int STORED = 0;
+        private static final int DEFLATED = 8;
+
+        private final File file;
+        private final ByteBuffer buffer;
+
+        MappedJar(File file) throws IOException {
+            this.file = file;
+
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("jar too large to map: " + file);
+
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            } finally {
+                in.close();
+            }
+        }
+
+        void collect(Set<String> names, List<ClassSource> sources) throws IOException {
+            int end = findEndHeader();
+            int entries = buffer.getShort(end + 10) & 0xffff;
+            long offset = buffer.getInt(end + 16) & 0xffffffffL;
+            if (entries == 0xffff || offset == 0xffffffffL)
+                throw new IOException("zip64 jars are not supported: " + file);
+
+            int p = (int) offset;
+            for (int i = 0; i < entries; i++) {
+                if (p + CENTRAL_HEADER_SIZE > buffer.limit() || buffer.getInt(p) != CENTRAL_HEADER)
+                    throw new IOException("bad central directory: " + file);
+
+                int method = buffer.getShort(p + 10) & 0xffff;
+                int crc = buffer.getInt(p + 16);
+                int compressedSize = buffer.getInt(p + 20);
+                int size = buffer.getInt(p + 24);
+                int nameLength = buffer.getShort(p + 28) & 0xffff;
+                int extraLength = buffer.getShort(p + 30) & 0xffff;
+                int commentLength = buffer.getShort(p + 32) & 0xffff;
+                int localHeader = buffer.getInt(p + 42);
+
+                byte[] nameBytes = new byte[nameLength];
+                ByteBuffer name = buffer.duplicate();
+                name.position(p + CENTRAL_HEADER_SIZE);
+                name.get(nameBytes);
+                String entryName = new String(nameBytes, StandardCharsets.UTF_8);
+
+                if (isClassEntry(entryName) && names.add(entryName))
+                    sources.add(new JarEntrySource(entryName, this, localHeader, method, crc, compressedSize, size));
+
+                p += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            }
+        }
+
+        byte[] read(int localHeader, int method, int compressedSize, int size, Inflater inflater)
+                throws IOException
+        {
+            if (buffer.getInt(localHeader) != LOCAL_HEADER)
+                throw new IOException("bad local header in " + file + " at " + localHeader);
+
+            int data = localHeader + LOCAL_HEADER_SIZE +
+                    (buffer.getShort(localHeader + 26) & 0xffff) + (buffer.getShort(localHeader + 28) & 0xffff);
+
+            ByteBuffer entry = buffer.duplicate();
+            entry.position(data);
+
+            if (method == STORED) {
+                byte[] bytes = new byte[size];
+                entry.get(bytes);
+                return bytes;
+            }
+
+            if (method != DEFLATED)
+                throw new IOException("unsupported compression method " + method + " in " + file);
+
+            byte[] compressed = new byte[compressedSize];
+            entry.get(compressed);
+
+            byte[] bytes = new byte[size];
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                int n = 0;
+                while (n < size) {
+                    int inflated = inflater.inflate(bytes, n, size - n);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("truncated entry in " + file);
+                    n += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt entry in " + file, e);
+            }
+            return bytes;
+        }
+
+        private int findEndHeader() throws IOException {
+            int limit = Math.max(buffer.limit() - END_HEADER_SIZE - 0xffff, 0);
+            for (int p = buffer.limit() - END_HEADER_SIZE; p >= limit; p--) {
+                if (buffer.getInt(p) == END_HEADER)
+                    return p;
+            }
+            throw new IOException("not a jar file: " + file);
+        }
+    }
+}
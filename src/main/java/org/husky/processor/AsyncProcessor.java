@@ -0,0 +1,393 @@
+package org.husky.processor;
+
+import org.husky.MethodCallContext;
+import org.husky.ShutdownHook;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Moves events off the application threads: probes only copy the event
+ * into a bounded lock-free multi-producer queue, and one consumer thread
+ * collects them into an EventBatch that is handed over when it is full or
+ * flushInterval milliseconds after its first event.
+ *
+ * Threads are spread over a few queues by thread id, so each thread's
+ * events stay in order. A BatchProcessor gets the batch as is and must take
+ * times from the event timestamps, as TimingProcessor does; any other
+ * processor is called once per event with a detached MethodCallContext
+ * per thread replayed to the event's frame, so it runs unchanged but on the
+ * consumer thread.
+ *
+ * When a queue is full the "block" policy, the default, makes the thread
+ * wait for the consumer, the "drop" policy discards and counts the event.
+ * The idle consumer parks, and a producer wakes it each quarter of a
+ * queue, so a burst does not fill a queue while it sleeps.
+ *
+ * The delegate's shutdown hook is handed over to this processor: at exit,
+ * or on close(), the events still queued are dispatched first and only
+ * then is the delegate closed, so it writes its output with every event.
+ *
+ * A thread that has ended keeps its detached context until the consumer
+ * has dispatched every event the thread queued; the context is then
+ * dropped and retired in the delegate.
+ */
+public class AsyncProcessor implements InstrumentProcessor, ProcessorMetrics, ThreadStateProcessor,
+        CloseableProcessor
+{
+    public static final int EVENT_SIZE = 48;
+
+    private static final int EVENT_INTS = 6;
+    private static final int EVENT_LONGS = 2;
+    private static final long IDLE_PARK_NANOS = 1000000L;
+
+    private final InstrumentProcessor processor;
+    private final BatchProcessor batchProcessor;
+    private final boolean block;
+    private final EventQueue[] queues;
+    private final EventBatch batch;
+    private final long flushInterval;
+    private final ConcurrentHashMap<Long, MethodCallContext> contexts = new ConcurrentHashMap<Long, MethodCallContext>();
+    private final ConcurrentLinkedQueue<RetiredThread> retiredThreads = new ConcurrentLinkedQueue<RetiredThread>();
+    private final Thread consumer;
+    private final ShutdownHook shutdownHook;
+
+    private volatile boolean running = true;
+    private volatile boolean parked = false;
+    private long batchStartTime;
+
+    public AsyncProcessor(InstrumentProcessor processor, int bufferSize, String bufferFullPolicy,
+                          int batchSize, long flushIntervalMillis)
+    {
+        if (BinaryProcessor.BLOCK_POLICY.equals(bufferFullPolicy)) {
+            block = true;
+        } else if (BinaryProcessor.DROP_POLICY.equals(bufferFullPolicy)) {
+            block = false;
+        } else {
+            throw new IllegalArgumentException(bufferFullPolicy);
+        }
+
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize: " + batchSize);
+
+        this.processor = processor;
+        if (processor instanceof CloseableProcessor)
+            ((CloseableProcessor) processor).handOverShutdown();
+        this.batchProcessor = processor instanceof BatchProcessor ? (BatchProcessor) processor : null;
+        this.batch = new EventBatch(batchSize);
+        this.flushInterval = flushIntervalMillis * 1000000L;
+
+        int stripes = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 1));
+        int capacity = Integer.highestOneBit(Math.max(bufferSize / EVENT_SIZE / stripes, 64));
+        queues = new EventQueue[stripes];
+        for (int i = 0; i < stripes; i++)
+            queues[i] = new EventQueue(capacity);
+
+        consumer = new Thread(new Runnable() {
+            public void run() {
+                consumeLoop();
+            }
+        }, "husky-async-consumer");
+        consumer.setDaemon(true);
+        consumer.start();
+
+        shutdownHook = new ShutdownHook(new Runnable() {
+            public void run() {
+                shutdown();
+            }
+        }, "husky-async-shutdown");
+    }
+
+    public void processCallStart(MethodCallContext context) {
+        offer(context, EventBatch.CALL_START);
+    }
+
+    public void processCallFinish(MethodCallContext context) {
+        offer(context, EventBatch.CALL_FINISH);
+    }
+
+    public void processThrowException(MethodCallContext context) {
+        offer(context, EventBatch.THROW_EXCEPTION);
+    }
+
+    public void processCatchException(MethodCallContext context) {
+        offer(context, EventBatch.CATCH_EXCEPTION);
+    }
+
+    public void retireThread(MethodCallContext context) {
+        EventQueue queue = (EventQueue) context.getProcessorData();
+        if (queue != null)
+            retiredThreads.add(new RetiredThread(context.getThreadId(), queue, queue.tail.get()));
+        context.setProcessorData(null);
+    }
+
+    public long getQueueDepth() {
+        long depth = 0;
+        for (EventQueue queue : queues)
+            depth += queue.size();
+
+        if (processor instanceof ProcessorMetrics)
+            depth += ((ProcessorMetrics) processor).getQueueDepth();
+        return depth;
+    }
+
+    public long getBytesWritten() {
+        if (processor instanceof ProcessorMetrics)
+            return ((ProcessorMetrics) processor).getBytesWritten();
+        return 0;
+    }
+
+    public long getDroppedEvents() {
+        long dropped = 0;
+        for (EventQueue queue : queues)
+            dropped += queue.dropped.get();
+        return dropped;
+    }
+
+    private void offer(MethodCallContext context, int type) {
+        EventQueue queue;
+        if ((queue = (EventQueue) context.getProcessorData()) == null) {
+            contexts.put(context.getThreadId(), new MethodCallContext(context.getThreadId(), context.getThreadName()));
+            queue = queues[(int) context.getThreadId() & (queues.length - 1)];
+            context.setProcessorData(queue);
+        }
+
+        int depth = context.getDepth();
+        int callerId = depth > 0 ? context.getCallerId() : context.getId();
+        int callerCallSite = depth > 0 ? context.getCallerCallSite() : context.getCallSite();
+        long timestamp = System.nanoTime();
+
+        long t;
+        while ((t = queue.offer(type, context.getThreadId(), depth, context.getId(), context.getCallSite(),
+                callerId, callerCallSite, timestamp)) < 0) {
+            if (!block || !running) {
+                queue.dropped.incrementAndGet();
+                return;
+            }
+
+            LockSupport.unpark(consumer);
+            Thread.yield();
+        }
+
+        if ((t & queue.wakeMask) == 0 && parked)
+            LockSupport.unpark(consumer);
+    }
+
+    private void consumeLoop() {
+        while (running) {
+            boolean polled = pollAll();
+            if (batch.isFull() || (batch.size() > 0 && System.nanoTime() - batchStartTime >= flushInterval)) {
+                dispatch();
+            } else if (!polled) {
+                if (batch.size() == 0)
+                    releaseRetiredThreads();
+                parked = true;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                parked = false;
+            }
+        }
+    }
+
+    private boolean pollAll() {
+        boolean polled = false;
+        for (EventQueue queue : queues) {
+            while (!batch.isFull()) {
+                if (batch.size() == 0)
+                    batchStartTime = System.nanoTime();
+                if (!queue.poll(batch))
+                    break;
+                polled = true;
+            }
+        }
+        return polled;
+    }
+
+    private void dispatch() {
+        try {
+            if (batchProcessor != null) {
+                batchProcessor.processBatch(batch);
+            } else {
+                replay();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        batch.clear();
+        releaseRetiredThreads();
+    }
+
+    /*
+     * Called with an empty batch, so every event polled so far has been
+     * dispatched.
+     */
+    private void releaseRetiredThreads() {
+        Iterator<RetiredThread> iterator = retiredThreads.iterator();
+        while (iterator.hasNext()) {
+            RetiredThread retired = iterator.next();
+            if (retired.queue.head < retired.tail)
+                continue;
+
+            iterator.remove();
+            MethodCallContext context = contexts.remove(retired.threadId);
+            if (context != null && processor instanceof ThreadStateProcessor) {
+                try {
+                    ((ThreadStateProcessor) processor).retireThread(context);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void replay() {
+        long threadId = -1;
+        MethodCallContext context = null;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getThreadId(i) != threadId) {
+                threadId = batch.getThreadId(i);
+                context = contexts.get(threadId);
+            }
+
+            context.replay(batch.getDepth(i), batch.getId(i), batch.getCallSite(i),
+                    batch.getCallerId(i), batch.getCallerCallSite(i));
+
+            int type = batch.getType(i);
+            if (type == EventBatch.CALL_START) {
+                processor.processCallStart(context);
+            } else if (type == EventBatch.CALL_FINISH) {
+                processor.processCallFinish(context);
+            } else if (type == EventBatch.THROW_EXCEPTION) {
+                processor.processThrowException(context);
+            } else if (type == EventBatch.CATCH_EXCEPTION) {
+                processor.processCatchException(context);
+            }
+        }
+    }
+
+    public void close() {
+        shutdownHook.runNow();
+    }
+
+    public void handOverShutdown() {
+        shutdownHook.handOver();
+    }
+
+    private void shutdown() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        while (pollAll() || batch.size() > 0)
+            dispatch();
+        releaseRetiredThreads();
+
+        long dropped = getDroppedEvents();
+        if (dropped > 0)
+            System.err.println("husky: " + dropped + " events dropped by the async processor");
+
+        if (processor instanceof CloseableProcessor)
+            ((CloseableProcessor) processor).close();
+    }
+
+    private static class RetiredThread {
+        final long threadId;
+        final EventQueue queue;
+        final long tail;
+
+        RetiredThread(long threadId, EventQueue queue, long tail) {
+            this.threadId = threadId;
+            this.queue = queue;
+            this.tail = tail;
+        }
+    }
+
+    /*
+     * Bounded MPSC queue after Vyukov: producers claim a slot by CAS on the
+     * tail and publish it through the slot's sequence; the consumer frees it
+     * by moving the sequence one lap ahead.
+     */
+    private static class EventQueue {
+        final int capacity;
+        final long wakeMask;
+        final AtomicLong tail = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLongArray sequences;
+        final int[] ints;
+        final long[] longs;
+
+        volatile long head;
+
+        EventQueue(int capacity) {
+            this.capacity = capacity;
+            this.wakeMask = capacity / 4 - 1;
+            this.sequences = new AtomicLongArray(capacity);
+            this.ints = new int[capacity * EVENT_INTS];
+            this.longs = new long[capacity * EVENT_LONGS];
+            for (int i = 0; i < capacity; i++)
+                sequences.lazySet(i, i);
+        }
+
+        /*
+         * Returns the event's position in the queue, or -1 when it is full.
+         */
+        long offer(int type, long threadId, int depth, int id, int callSite, int callerId, int callerCallSite,
+                   long timestamp)
+        {
+            long t;
+            int slot;
+            while (true) {
+                t = tail.get();
+                slot = (int) (t & (capacity - 1));
+                long diff = sequences.get(slot) - t;
+                if (diff == 0) {
+                    if (tail.compareAndSet(t, t + 1))
+                        break;
+                } else if (diff < 0) {
+                    return -1;
+                }
+            }
+
+            int i = slot * EVENT_INTS;
+            ints[i] = type;
+            ints[i + 1] = depth;
+            ints[i + 2] = id;
+            ints[i + 3] = callSite;
+            ints[i + 4] = callerId;
+            ints[i + 5] = callerCallSite;
+            int l = slot * EVENT_LONGS;
+            longs[l] = threadId;
+            longs[l + 1] = timestamp;
+
+            sequences.lazySet(slot, t + 1);
+            return t;
+        }
+
+        boolean poll(EventBatch batch) {
+            long h = head;
+            int slot = (int) (h & (capacity - 1));
+            if (sequences.get(slot) != h + 1)
+                return false;
+
+            int i = slot * EVENT_INTS;
+            int l = slot * EVENT_LONGS;
+            batch.add(ints[i], longs[l], ints[i + 1], ints[i + 2], ints[i + 3], ints[i + 4], ints[i + 5],
+                    longs[l + 1]);
+
+            sequences.lazySet(slot, h + capacity);
+            head = h + 1;
+            return true;
+        }
+
+        long size() {
+            return tail.get() - head;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.husky.processor;
+
+/*
+ * Implemented by processors that can take events in bulk from
+ * AsyncProcessor's consumer thread instead of one callback per event. The
+ * batch is reused once processBatch() returns.
+ */
+public interface BatchProcessor {
+    void processBatch(EventBatch batch);
+}
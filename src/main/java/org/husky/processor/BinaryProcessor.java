@@ -0,0 +1,338 @@
+package org.husky.processor;
+
+import org.husky.CallSite;
+import org.husky.CallSiteRegistry;
+import org.husky.MethodCallContext;
+import org.husky.ShutdownHook;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Events are stored as fixed-size records in a per-thread off-heap ring
+ * buffer and drained to disk by a single background thread.
+ *
+ * Output file: int magic, int version, int record size, followed by chunks
+ * of long thread id, int byte count and that many bytes of records.
+ * Record: int type, int call site, int frame id, int caller frame id,
+ * long System.nanoTime(). The call-site table is written next to it on exit.
+ *
+ * When a thread's buffer is full the "block" policy makes the thread wait
+ * for the drain thread, the "drop" policy discards the event. Dropped events
+ * are always counted and reported as DROPPED records carrying the count in
+ * the timestamp field. The buffer of an ended thread is released once the
+ * drain thread has emptied it.
+ *
+ * bufferSize is the budget of all buffers together. A thread gets at most
+ * THREAD_RECORDS records, halved while its buffer would exceed what is left
+ * of the budget, down to MIN_RECORDS, so a thread started once the budget
+ * is spent still costs MIN_RECORDS * RECORD_SIZE bytes of direct memory.
+ */
+public class BinaryProcessor implements InstrumentProcessor, ProcessorMetrics, ThreadStateProcessor,
+        CloseableProcessor
+{
+    public static final int CALL_START = 1;
+    public static final int CALL_FINISH = 2;
+    public static final int THROW_EXCEPTION = 3;
+    public static final int CATCH_EXCEPTION = 4;
+    public static final int DROPPED = 5;
+
+    public static final int FILE_MAGIC = 0x48534b45;
+    public static final int FILE_VERSION = 1;
+    public static final int RECORD_SIZE = 24;
+
+    public static final String BLOCK_POLICY = "block";
+    public static final String DROP_POLICY = "drop";
+
+    private static final String OUTPUT_FILE = "husky.events";
+    private static final String CALL_SITE_FILE = "husky.events.sites";
+    private static final int CHUNK_HEADER_SIZE = 12;
+    private static final int WRITE_BUFFER_SIZE = 4 << 20;
+    private static final long IDLE_PARK_NANOS = 1000000L;
+    private static final int THREAD_RECORDS = 4096;
+    private static final int MIN_RECORDS = 64;
+
+    private final int capacity;
+    private final long budget;
+    private final AtomicLong reserved = new AtomicLong();
+    private final boolean block;
+    private final ConcurrentLinkedQueue<EventRing> rings = new ConcurrentLinkedQueue<EventRing>();
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final Thread drainer;
+    private final ShutdownHook shutdownHook;
+
+    private volatile boolean running = true;
+    private volatile long bytesWritten = 0;
+
+    public BinaryProcessor(int bufferSize, String bufferFullPolicy) {
+        if (BLOCK_POLICY.equals(bufferFullPolicy)) {
+            block = true;
+        } else if (DROP_POLICY.equals(bufferFullPolicy)) {
+            block = false;
+        } else {
+            throw new IllegalArgumentException(bufferFullPolicy);
+        }
+
+        int records = Math.min(Math.max(bufferSize / RECORD_SIZE, MIN_RECORDS), THREAD_RECORDS);
+        capacity = Integer.highestOneBit(records);
+        budget = bufferSize;
+
+        try {
+            channel = new FileOutputStream(OUTPUT_FILE).getChannel();
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(RECORD_SIZE).flip();
+            channel.write(header);
+        } catch (IOException e) {
+            throw new RuntimeException("cannot create event file: " + OUTPUT_FILE, e);
+        }
+
+        drainer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "husky-event-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        shutdownHook = new ShutdownHook(new Runnable() {
+            public void run() {
+                shutdown();
+            }
+        }, "husky-event-shutdown");
+    }
+
+    public void processCallStart(MethodCallContext context) {
+        write(context, CALL_START);
+    }
+
+    public void processCallFinish(MethodCallContext context) {
+        write(context, CALL_FINISH);
+    }
+
+    public void processThrowException(MethodCallContext context) {
+        write(context, THROW_EXCEPTION);
+    }
+
+    public void processCatchException(MethodCallContext context) {
+        write(context, CATCH_EXCEPTION);
+    }
+
+    public void retireThread(MethodCallContext context) {
+        EventRing ring = (EventRing) context.getProcessorData();
+        if (ring != null)
+            ring.retired = true;
+        context.setProcessorData(null);
+    }
+
+    public long getQueueDepth() {
+        long depth = 0;
+        for (EventRing ring : rings)
+            depth += ring.size();
+        return depth;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void write(MethodCallContext context, int type) {
+        EventRing ring;
+        if ((ring = (EventRing) context.getProcessorData()) == null) {
+            ring = new EventRing(context.getThreadId(), ringCapacity());
+            context.setProcessorData(ring);
+            rings.add(ring);
+        }
+
+        int depth = context.getDepth();
+        int callerId = depth > 0 ? context.getCallerId() : context.getId();
+        long timestamp = System.nanoTime();
+
+        while (!ring.offer(type, context.getCallSite(), context.getId(), callerId, timestamp)) {
+            if (!block || !running) {
+                ring.dropped++;
+                return;
+            }
+
+            LockSupport.unpark(drainer);
+            Thread.yield();
+        }
+    }
+
+    /*
+     * Racing threads may overshoot the budget by a buffer each, which is
+     * fine for a bound on memory.
+     */
+    private int ringCapacity() {
+        int records = capacity;
+        while (records > MIN_RECORDS && reserved.get() + (long) records * RECORD_SIZE > budget)
+            records >>= 1;
+
+        reserved.addAndGet((long) records * RECORD_SIZE);
+        return records;
+    }
+
+    private void drainLoop() {
+        try {
+            while (running) {
+                if (!drainAll()) {
+                    flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            running = false;
+            e.printStackTrace();
+        }
+    }
+
+    private boolean drainAll() throws IOException {
+        boolean drained = false;
+        Iterator<EventRing> iterator = rings.iterator();
+        while (iterator.hasNext()) {
+            EventRing ring = iterator.next();
+            boolean retired = ring.retired;
+            if (drain(ring)) {
+                drained = true;
+            } else if (retired) {
+                iterator.remove();
+                reserved.addAndGet(-(long) ring.capacity * RECORD_SIZE);
+            }
+        }
+        return drained;
+    }
+
+    private boolean drain(EventRing ring) throws IOException {
+        long dropped = ring.dropped;
+        if (dropped != ring.reportedDropped) {
+            reserve(CHUNK_HEADER_SIZE + RECORD_SIZE);
+            writeBuffer.putLong(ring.threadId).putInt(RECORD_SIZE);
+            writeBuffer.putInt(DROPPED).putInt(-1).putInt(-1).putInt(-1).putLong(dropped - ring.reportedDropped);
+            ring.reportedDropped = dropped;
+        }
+
+        long head = ring.head.get();
+        long available = ring.tail.get() - head;
+        if (available == 0)
+            return false;
+
+        reserve(CHUNK_HEADER_SIZE + RECORD_SIZE);
+        int count = (int) Math.min(available, (writeBuffer.remaining() - CHUNK_HEADER_SIZE) / RECORD_SIZE);
+        writeBuffer.putLong(ring.threadId).putInt(count * RECORD_SIZE);
+
+        int start = (int) (head & (ring.capacity - 1));
+        int first = Math.min(count, ring.capacity - start);
+        ByteBuffer records = ring.buffer.duplicate();
+        records.limit((start + first) * RECORD_SIZE).position(start * RECORD_SIZE);
+        writeBuffer.put(records);
+        if (first < count) {
+            records.limit((count - first) * RECORD_SIZE).position(0);
+            writeBuffer.put(records);
+        }
+
+        ring.head.lazySet(head + count);
+        return true;
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (writeBuffer.remaining() < bytes)
+            flush();
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        int bytes = writeBuffer.remaining();
+        while (writeBuffer.hasRemaining())
+            channel.write(writeBuffer);
+        writeBuffer.clear();
+        bytesWritten += bytes;
+    }
+
+    public void close() {
+        shutdownHook.runNow();
+    }
+
+    public void handOverShutdown() {
+        shutdownHook.handOver();
+    }
+
+    private void shutdown() {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+            while (drainAll()) { }
+            flush();
+            channel.close();
+            writeCallSites();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeCallSites() throws IOException {
+        PrintWriter writer = new PrintWriter(CALL_SITE_FILE);
+        try {
+            int size = CallSiteRegistry.size();
+            for (int i = 0; i < size; i++) {
+                CallSite site = CallSiteRegistry.get(i);
+                writer.println(site.id + " " + site.callerClass + " " + site.callerMethod + " " +
+                        site.calleeClass + " " + site.calleeMethod + " " + site.opcode + " " + site.line);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static class EventRing {
+        final long threadId;
+        final int capacity;
+        final ByteBuffer buffer;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+
+        volatile long dropped;
+        volatile boolean retired = false;
+        long reportedDropped;
+
+        private long cachedHead;
+        private long nextTail;
+
+        EventRing(long threadId, int capacity) {
+            this.threadId = threadId;
+            this.capacity = capacity;
+            this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        }
+
+        boolean offer(int type, int callSite, int id, int callerId, long timestamp) {
+            long t = nextTail;
+            if (t - cachedHead == capacity) {
+                cachedHead = head.get();
+                if (t - cachedHead == capacity)
+                    return false;
+            }
+
+            int offset = (int) (t & (capacity - 1)) * RECORD_SIZE;
+            buffer.putInt(offset, type);
+            buffer.putInt(offset + 4, callSite);
+            buffer.putInt(offset + 8, id);
+            buffer.putInt(offset + 12, callerId);
+            buffer.putLong(offset + 16, timestamp);
+
+            nextTail = t + 1;
+            tail.lazySet(nextTail);
+            return true;
+        }
+
+        long size() {
+            return tail.get() - head.get();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.husky.processor;
+
+import org.husky.CallSite;
+import org.husky.CallSiteRegistry;
+import org.husky.MethodCallContext;
+import org.husky.ShutdownHook;
+import org.husky.graph.CallGraph;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class CallGraphProcessor implements InstrumentProcessor, ThreadStateProcessor, CloseableProcessor {
+    private static final String OUTPUT_FILE = "husky-callgraph.txt";
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ThreadStates<EdgeCounters> counters = new ThreadStates<EdgeCounters>();
+    private final EdgeCounters retired = new EdgeCounters();
+    private final ShutdownHook shutdownHook;
+
+    public CallGraphProcessor() {
+        shutdownHook = new ShutdownHook(new Runnable() {
+            public void run() {
+                try {
+                    dump(new File(OUTPUT_FILE));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "husky-callgraph-shutdown");
+    }
+
+    public void processCallStart(MethodCallContext context) {
+        EdgeCounters edgeCounters;
+        if ((edgeCounters = (EdgeCounters) context.getProcessorData()) == null) {
+            edgeCounters = new EdgeCounters();
+            context.setProcessorData(edgeCounters);
+            counters.add(edgeCounters);
+        }
+
+        edgeCounters.increment(context.getCallSite());
+    }
+
+    public void processCallFinish(MethodCallContext context) {}
+
+    public void processThrowException(MethodCallContext context) {}
+
+    public void processCatchException(MethodCallContext context) {}
+
+    public void close() {
+        shutdownHook.runNow();
+    }
+
+    public void handOverShutdown() {
+        shutdownHook.handOver();
+    }
+
+    public void retireThread(MethodCallContext context) {
+        EdgeCounters edgeCounters = (EdgeCounters) context.getProcessorData();
+        if (edgeCounters == null)
+            return;
+
+        synchronized (retired) {
+            AtomicLongArray counts = edgeCounters.counts;
+            for (int i = 0; i < counts.length(); i++) {
+                long count = counts.get(i);
+                if (count != 0)
+                    retired.add(i, count);
+            }
+            counters.retire(edgeCounters);
+        }
+        context.setProcessorData(null);
+    }
+
+    public CallGraph snapshot() {
+        long[] totals = new long[CallSiteRegistry.size()];
+        synchronized (retired) {
+            addCounts(totals, retired);
+            for (EdgeCounters edgeCounters : counters) {
+                addCounts(totals, edgeCounters);
+            }
+        }
+
+        CallGraph graph = new CallGraph();
+        for (int i = 0; i < totals.length; i++) {
+            if (totals[i] == 0)
+                continue;
+
+            CallSite site = CallSiteRegistry.get(i);
+            graph.addEdge(site.callerClass + "." + site.callerMethod,
+                    site.calleeClass + "." + site.calleeMethod, totals[i]);
+        }
+
+        return graph;
+    }
+
+    public void dump(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            snapshot().write(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void addCounts(long[] totals, EdgeCounters edgeCounters) {
+        AtomicLongArray counts = edgeCounters.counts;
+        int length = Math.min(counts.length(), totals.length);
+        for (int i = 0; i < length; i++) {
+            totals[i] += counts.get(i);
+        }
+    }
+
+    private static class EdgeCounters extends ThreadStates.State {
+        volatile AtomicLongArray counts = new AtomicLongArray(INITIAL_CAPACITY);
+
+        void increment(int callSite) {
+            add(callSite, 1);
+        }
+
+        void add(int callSite, long count) {
+            AtomicLongArray c = counts;
+            if (callSite >= c.length())
+                c = grow(c, callSite);
+
+            c.lazySet(callSite, c.get(callSite) + count);
+        }
+
+        private AtomicLongArray grow(AtomicLongArray c, int callSite) {
+            int length = c.length();
+            while (length <= callSite)
+                length <<= 1;
+
+            AtomicLongArray grown = new AtomicLongArray(length);
+            for (int i = 0; i < c.length(); i++) {
+                grown.set(i, c.get(i));
+            }
+
+            counts = grown;
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.husky.processor;
+
+import org.husky.MethodCallContext;
+import org.husky.ShutdownHook;
+import org.husky.graph.CallingContextTree;
+import org.husky.graph.FlameGraphExporter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+public class CallingContextTreeProcessor implements InstrumentProcessor, ThreadStateProcessor, CloseableProcessor {
+    private static final String OUTPUT_FILE = "husky-cct.txt";
+    private static final String FOLDED_OUTPUT_FILE = "husky-cct.folded";
+    private static final int INITIAL_DEPTH = 64;
+
+    private final ThreadStates<ThreadTree> trees = new ThreadStates<ThreadTree>();
+    private final CallingContextTree retired = new CallingContextTree();
+    private final ShutdownHook shutdownHook;
+
+    public CallingContextTreeProcessor() {
+        shutdownHook = new ShutdownHook(new Runnable() {
+            public void run() {
+                try {
+                    dump(new File(OUTPUT_FILE), new File(FOLDED_OUTPUT_FILE));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "husky-cct-shutdown");
+    }
+
+    public void processCallStart(MethodCallContext context) {
+        ThreadTree tree;
+        if ((tree = (ThreadTree) context.getProcessorData()) == null) {
+            tree = new ThreadTree();
+            context.setProcessorData(tree);
+            trees.add(tree);
+        }
+
+        tree.enter(context);
+    }
+
+    public void processCallFinish(MethodCallContext context) {}
+
+    public void processThrowException(MethodCallContext context) {}
+
+    public void processCatchException(MethodCallContext context) {}
+
+    public void close() {
+        shutdownHook.runNow();
+    }
+
+    public void handOverShutdown() {
+        shutdownHook.handOver();
+    }
+
+    public void retireThread(MethodCallContext context) {
+        ThreadTree tree = (ThreadTree) context.getProcessorData();
+        if (tree == null)
+            return;
+
+        synchronized (retired) {
+            retired.merge(tree.tree);
+            trees.retire(tree);
+        }
+        context.setProcessorData(null);
+    }
+
+    public CallingContextTree snapshot() {
+        CallingContextTree merged = new CallingContextTree();
+        synchronized (retired) {
+            merged.merge(retired);
+            for (ThreadTree tree : trees) {
+                merged.merge(tree.tree);
+            }
+        }
+        return merged;
+    }
+
+    public void dump(File file, File foldedFile) throws IOException {
+        CallingContextTree tree = snapshot();
+
+        Writer writer = new FileWriter(file);
+        try {
+            tree.write(writer);
+        } finally {
+            writer.close();
+        }
+
+        writer = new FileWriter(foldedFile);
+        try {
+            FlameGraphExporter.writeCollapsed(tree, null, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /*
+     * nodes[d] is the tree node of the frame at depth d. A call start only
+     * reads the node of its caller, so unwinding needs no bookkeeping: the
+     * next start at a lower depth simply overwrites the stale entries. The
+     * thread's root frame gets a node but no count, since its own call was
+     * never seen, as in FlameGraphExporter.
+     */
+    private static class ThreadTree extends ThreadStates.State {
+        final CallingContextTree tree = new CallingContextTree();
+
+        private int[] nodes = new int[INITIAL_DEPTH];
+
+        void enter(MethodCallContext context) {
+            int depth = context.getDepth();
+            if (depth >= nodes.length)
+                grow(depth);
+
+            if (depth == 1)
+                nodes[0] = tree.child(CallingContextTree.ROOT, context.getCallSite(0));
+
+            int node = tree.child(nodes[depth - 1], context.getCallSite());
+            tree.increment(node);
+            nodes[depth] = node;
+        }
+
+        private void grow(int depth) {
+            int length = nodes.length;
+            while (length <= depth)
+                length <<= 1;
+
+            int[] grown = new int[length];
+            System.arraycopy(nodes, 0, grown, 0, nodes.length);
+            nodes = grown;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.husky.processor;
+
+/*
+ * Implemented by processors that hold threads, files or a shutdown hook.
+ * When the agent detaches, close() is called once every thread has been
+ * retired; it writes what the shutdown hook would have written at exit and
+ * releases the rest, so the processor leaves nothing behind in the JVM.
+ */
+public interface CloseableProcessor {
+    void close();
+
+    /*
+     * Called by a processor that wraps this one, such as AsyncProcessor:
+     * the shutdown hook is removed, and what it would have written is only
+     * written by close(), which the wrapper calls at exit once it has handed
+     * over every event.
+     */
+    void handOverShutdown();
+}
@@ -0,0 +1,95 @@
+package org.husky.processor;
+
+/*
+ * A reusable buffer of events in parallel primitive arrays. For an event at
+ * depth 0 the caller fields repeat the frame's own id and call site.
+ */
+public class EventBatch {
+    public static final int CALL_START = 1;
+    public static final int CALL_FINISH = 2;
+    public static final int THROW_EXCEPTION = 3;
+    public static final int CATCH_EXCEPTION = 4;
+
+    private final int[] types;
+    private final long[] threadIds;
+    private final int[] depths;
+    private final int[] ids;
+    private final int[] callSites;
+    private final int[] callerIds;
+    private final int[] callerCallSites;
+    private final long[] timestamps;
+    private int size = 0;
+
+    public EventBatch(int capacity) {
+        types = new int[capacity];
+        threadIds = new long[capacity];
+        depths = new int[capacity];
+        ids = new int[capacity];
+        callSites = new int[capacity];
+        callerIds = new int[capacity];
+        callerCallSites = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return types.length;
+    }
+
+    public boolean isFull() {
+        return size == types.length;
+    }
+
+    public int getType(int event) {
+        return types[event];
+    }
+
+    public long getThreadId(int event) {
+        return threadIds[event];
+    }
+
+    public int getDepth(int event) {
+        return depths[event];
+    }
+
+    public int getId(int event) {
+        return ids[event];
+    }
+
+    public int getCallSite(int event) {
+        return callSites[event];
+    }
+
+    public int getCallerId(int event) {
+        return callerIds[event];
+    }
+
+    public int getCallerCallSite(int event) {
+        return callerCallSites[event];
+    }
+
+    public long getTimestamp(int event) {
+        return timestamps[event];
+    }
+
+    void add(int type, long threadId, int depth, int id, int callSite, int callerId, int callerCallSite,
+             long timestamp)
+    {
+        types[size] = type;
+        threadIds[size] = threadId;
+        depths[size] = depth;
+        ids[size] = id;
+        callSites[size] = callSite;
+        callerIds[size] = callerId;
+        callerCallSites[size] = callerCallSite;
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
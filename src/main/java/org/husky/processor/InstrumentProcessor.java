@@ -3,7 +3,13 @@ package org.husky.processor;
 import org.husky.MethodCallContext;
 
 public interface InstrumentProcessor {
+    String NULL_PROCESSOR = "null";
     String LOG_PROCESSOR = "log";
+    String BINARY_PROCESSOR = "binary";
+    String TRACE_PROCESSOR = "trace";
+    String CALL_GRAPH_PROCESSOR = "graph";
+    String TIMING_PROCESSOR = "timing";
+    String CALLING_CONTEXT_TREE_PROCESSOR = "cct";
 
     void processCallStart(MethodCallContext context);
     void processCallFinish(MethodCallContext context);
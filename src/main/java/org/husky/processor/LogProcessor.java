@@ -1,53 +1,187 @@
 package org.husky.processor;
 
 import org.husky.MethodCallContext;
+import org.husky.ShutdownHook;
 
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class LogProcessor implements InstrumentProcessor {
-    private Map<Long, PrintWriter> writers = new HashMap<Long, PrintWriter>();
+/*
+ * Writes one line per event, by default to a file per thread named
+ * "<thread name>_<thread id>" that is closed once the thread has ended.
+ * With sinks > 0 threads share that many files instead, husky-log-<n>.txt
+ * picked by thread id, and every line starts with the thread id, so the
+ * number of open files stays bounded however many threads come and go.
+ *
+ * With compress, or a rotateSize, rotateInterval or retainSize, the files
+ * are written by a LogWriter instead: lines are buffered in blocks that its
+ * own thread compresses, rotates and deletes.
+ */
+public class LogProcessor implements InstrumentProcessor, ProcessorMetrics, ThreadStateProcessor,
+        CloseableProcessor
+{
+    private static final String SINK_FILE_PREFIX = "husky-log-";
+    private static final String SINK_FILE_SUFFIX = ".txt";
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final int sinkCount;
+    private final PrintWriter[] sinks;
+    private final LogWriter logWriter;
+    private final LogWriter.LogFile[] sinkFiles;
+    private final ShutdownHook shutdownHook;
+
+    public LogProcessor() {
+        this(0);
+    }
+
+    public LogProcessor(int sinks) {
+        this(sinks, false, 0, 0, 0);
+    }
+
+    public LogProcessor(int sinks, boolean compress, long rotateSize, long rotateIntervalMillis, long retainSize) {
+        if (sinks < 0)
+            throw new IllegalArgumentException("logSinks: " + sinks);
+
+        this.sinkCount = sinks;
+        if (!compress && rotateSize == 0 && rotateIntervalMillis == 0 && retainSize == 0) {
+            this.logWriter = null;
+            this.sinkFiles = null;
+            this.shutdownHook = null;
+            this.sinks = new PrintWriter[sinks];
+            for (int i = 0; i < sinks; i++) {
+                String fileName = SINK_FILE_PREFIX + i + SINK_FILE_SUFFIX;
+                try {
+                    this.sinks[i] = new PrintWriter(fileName);
+                } catch (FileNotFoundException e) {
+                    throw new RuntimeException("cannot create log file: " + fileName);
+                }
+            }
+            return;
+        }
+
+        this.sinks = null;
+        this.logWriter = new LogWriter(compress, rotateSize, rotateIntervalMillis, retainSize);
+        this.sinkFiles = new LogWriter.LogFile[sinks];
+        for (int i = 0; i < sinks; i++)
+            this.sinkFiles[i] = logWriter.open(SINK_FILE_PREFIX + i + SINK_FILE_SUFFIX);
+
+        this.shutdownHook = new ShutdownHook(new Runnable() {
+            public void run() {
+                logWriter.shutdown();
+            }
+        }, "husky-log-shutdown");
+    }
 
     public void processCallStart(MethodCallContext context) {
-        write(content("+", context));
+        write(context, content("+", context));
     }
 
     public void processCallFinish(MethodCallContext context) {
-        write(content("-", context));
+        write(context, content("-", context));
     }
 
     public void processThrowException(MethodCallContext context) {
-        write(content("*", context));
+        write(context, content("*", context));
     }
 
     public void processCatchException(MethodCallContext context) { }
 
+    public void close() {
+        if (shutdownHook != null) {
+            shutdownHook.runNow();
+            return;
+        }
+
+        for (PrintWriter sink : sinks) {
+            synchronized (sink) {
+                sink.close();
+            }
+        }
+    }
+
+    public void handOverShutdown() {
+        if (shutdownHook != null)
+            shutdownHook.handOver();
+    }
+
+    public void retireThread(MethodCallContext context) {
+        Object output = context.getProcessorData();
+        if (output != null && sinkCount == 0) {
+            if (logWriter != null) {
+                logWriter.close((LogWriter.LogFile) output);
+            } else {
+                ((PrintWriter) output).close();
+            }
+        }
+        context.setProcessorData(null);
+    }
+
+    public long getQueueDepth() {
+        return logWriter != null ? logWriter.getQueueDepth() : 0;
+    }
+
+    /*
+     * Bytes on disk, so compressed bytes with compress.
+     */
+    public long getBytesWritten() {
+        return logWriter != null ? logWriter.getBytesWritten() : bytesWritten.get();
+    }
+
     private String content(String prefix, MethodCallContext context) {
-        MethodCallContext callerContext = context.prev;
-        return prefix + " " + context.id + " " + callerContext.id +
-                " " + context.className + "." + context.methodName + " " +
-                callerContext.className + "." + callerContext.methodName +
-                " " + context.line;
+        if (sinkCount > 0)
+            prefix = context.getThreadId() + " " + prefix;
+
+        if (context.getDepth() == 0)
+            return prefix + " " + context.getId() + " " + context.getId() +
+                    " " + context.getClassName() + "." + context.getMethodName() + " " +
+                    context.getClassName() + "." + context.getMethodName() +
+                    " " + context.getLine();
+
+        return prefix + " " + context.getId() + " " + context.getCallerId() +
+                " " + context.getClassName() + "." + context.getMethodName() + " " +
+                context.getCallerClassName() + "." + context.getCallerMethodName() +
+                " " + context.getLine();
     }
 
-    private void write(String content) {
-        Thread thread = Thread.currentThread();
-        Long tid = thread.getId();
+    private void write(MethodCallContext context, String content) {
+        if (logWriter != null) {
+            LogWriter.LogFile file;
+            if ((file = (LogWriter.LogFile) context.getProcessorData()) == null) {
+                if (sinkCount > 0) {
+                    file = sinkFiles[(int) ((context.getThreadId() & Long.MAX_VALUE) % sinkCount)];
+                } else {
+                    file = logWriter.open(context.getThreadName() + "_" + context.getThreadId());
+                }
+
+                context.setProcessorData(file);
+            }
+
+            logWriter.write(file, (content + LINE_SEPARATOR).getBytes());
+            return;
+        }
+
         PrintWriter writer;
-        if ((writer = writers.get(tid)) == null) {
-            String fileName = thread.getName() + "_" + tid;
-            try {
-                writer = new PrintWriter(fileName);
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException("cannot create log file: " + fileName);
+        if ((writer = (PrintWriter) context.getProcessorData()) == null) {
+            if (sinkCount > 0) {
+                writer = sinks[(int) ((context.getThreadId() & Long.MAX_VALUE) % sinkCount)];
+            } else {
+                String fileName = context.getThreadName() + "_" + context.getThreadId();
+                try {
+                    writer = new PrintWriter(fileName);
+                } catch (FileNotFoundException e) {
+                    throw new RuntimeException("cannot create log file: " + fileName);
+                }
             }
 
-            writers.put(tid, writer);
+            context.setProcessorData(writer);
         }
 
-        writer.println(content);
-        writer.flush();
+        synchronized (writer) {
+            writer.println(content);
+            writer.flush();
+        }
+        bytesWritten.addAndGet(content.length() + LINE_SEPARATOR.length());
     }
 }
@@ -0,0 +1,412 @@
+package org.husky.processor;
+
+import org.husky.trace.CompressedLogFormat;
+import org.husky.trace.Lz4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Log output when logs are compressed or rotated. Application threads only
+ * copy their lines into the block buffer of their file; full blocks are
+ * handed over to the "husky-log-writer" thread, which compresses, writes,
+ * rotates and deletes files, so an application thread waits only when the
+ * writer is a full queue behind. Partial blocks are handed over once per
+ * SWEEP_INTERVAL_NANOS, so a quiet file is at most that far behind.
+ *
+ * A file is written as segments named "<name>.<n>" when rotating, starting
+ * a new one after rotateSize bytes or rotateInterval milliseconds, and gets
+ * the CompressedLogFormat suffix when compressed. With retainSize the
+ * oldest closed segments of all files are deleted while the total written
+ * and not deleted exceeds it.
+ */
+class LogWriter {
+    static final int BLOCK_SIZE = 64 << 10;
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 10;
+    private static final int QUEUE_BLOCKS = 256;
+    private static final long SWEEP_INTERVAL_NANOS = 1000000000L;
+    private static final Block STOP = new Block(null, null, 0, false);
+
+    private final boolean compress;
+    private final boolean rotate;
+    private final long rotateSize;
+    private final long rotateIntervalNanos;
+    private final long retainSize;
+
+    private final ThreadStates<LogFile> files = new ThreadStates<LogFile>();
+    private final ArrayBlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(QUEUE_BLOCKS);
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Thread writer;
+
+    /* writer thread only */
+    private final byte[] output = new byte[CompressedLogFormat.BLOCK_HEADER_SIZE + Lz4.maxCompressedLength(BLOCK_SIZE)];
+    private final int[] hashTable = new int[Lz4.HASH_TABLE_SIZE];
+    private final ArrayDeque<Segment> closedSegments = new ArrayDeque<Segment>();
+    private long retainedBytes = 0;
+    private long deletedSegments = 0;
+    private long deletedBytes = 0;
+
+    LogWriter(boolean compress, long rotateSize, long rotateIntervalMillis, long retainSize) {
+        if (rotateSize < 0)
+            throw new IllegalArgumentException("logRotateSize: " + rotateSize);
+        if (rotateIntervalMillis < 0)
+            throw new IllegalArgumentException("logRotateInterval: " + rotateIntervalMillis);
+        if (retainSize < 0)
+            throw new IllegalArgumentException("logRetainSize: " + retainSize);
+
+        this.compress = compress;
+        this.rotate = rotateSize > 0 || rotateIntervalMillis > 0;
+        this.rotateSize = rotateSize;
+        this.rotateIntervalNanos = rotateIntervalMillis * 1000000L;
+        this.retainSize = retainSize;
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "husky-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    LogFile open(String name) {
+        LogFile file = new LogFile(name);
+        files.add(file);
+        return file;
+    }
+
+    /*
+     * Blocks hold whole writes, so rotation never splits a line between
+     * segments; only a write longer than BLOCK_SIZE spans blocks.
+     */
+    void write(LogFile file, byte[] bytes) {
+        file.lock.lock();
+        try {
+            if (file.closed)
+                return;
+
+            if (file.length + bytes.length > BLOCK_SIZE && file.length > 0)
+                handOver(file, false, true);
+
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (file.length == BLOCK_SIZE)
+                    handOver(file, false, true);
+
+                int needed = Math.min(file.length + bytes.length - offset, BLOCK_SIZE);
+                if (needed > file.buffer.length) {
+                    byte[] grown = new byte[Math.max(Math.min(file.buffer.length << 1, BLOCK_SIZE), needed)];
+                    System.arraycopy(file.buffer, 0, grown, 0, file.length);
+                    file.buffer = grown;
+                }
+
+                int n = Math.min(bytes.length - offset, file.buffer.length - file.length);
+                System.arraycopy(bytes, offset, file.buffer, file.length, n);
+                file.length += n;
+                offset += n;
+            }
+        } finally {
+            file.lock.unlock();
+        }
+    }
+
+    /*
+     * Writes what the file still buffers and closes it; later writes to it
+     * are dropped.
+     */
+    void close(LogFile file) {
+        file.lock.lock();
+        try {
+            if (file.closed)
+                return;
+
+            file.closed = true;
+            handOver(file, true, true);
+        } finally {
+            file.lock.unlock();
+        }
+    }
+
+    long getQueueDepth() {
+        return queue.size();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    void shutdown() {
+        for (LogFile file : files) {
+            file.lock.lock();
+            try {
+                if (!file.closed) {
+                    file.closed = true;
+                    if (file.length > 0)
+                        handOver(file, false, true);
+                }
+            } finally {
+                file.lock.unlock();
+            }
+        }
+
+        put(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (LogFile file : files)
+            closeSegment(file);
+        deleteOldSegments();
+
+        if (deletedSegments > 0)
+            System.err.println("husky: deleted " + deletedSegments + " log segments (" + deletedBytes +
+                    " bytes) to stay within logRetainSize");
+    }
+
+    /*
+     * Called holding the file's lock, which keeps each file's blocks in
+     * order in the queue. Without wait the block is only handed over if the
+     * queue has room.
+     */
+    private boolean handOver(LogFile file, boolean close, boolean wait) {
+        Block block = new Block(file, file.buffer, file.length, close);
+        if (wait) {
+            put(block);
+        } else if (!queue.offer(block)) {
+            return false;
+        }
+
+        if (file.closed) {
+            file.buffer = null;
+        } else if (file.buffer.length == BLOCK_SIZE) {
+            byte[] free = freeBuffers.poll();
+            file.buffer = free != null ? free : new byte[BLOCK_SIZE];
+        } else {
+            file.buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        file.length = 0;
+        return true;
+    }
+
+    private void put(Block block) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(block);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void writeLoop() {
+        long nextSweep = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+        try {
+            while (true) {
+                Block block = queue.poll(Math.max(nextSweep - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                if (block == STOP)
+                    return;
+
+                if (block != null)
+                    write(block);
+
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_INTERVAL_NANOS;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the JVM is exiting
+        }
+    }
+
+    /*
+     * Hands over partial blocks without waiting, since this thread is the
+     * one that empties the queue: a file that is locked, possibly by a
+     * thread waiting for room in the queue, or whose block does not fit is
+     * flushed by the next sweep. Then ends segments that are older than
+     * rotateInterval.
+     */
+    private void sweep(long now) {
+        for (LogFile file : files) {
+            if (file.lock.tryLock()) {
+                try {
+                    if (!file.closed && file.length > 0)
+                        handOver(file, false, false);
+                } finally {
+                    file.lock.unlock();
+                }
+            }
+
+            if (rotateIntervalNanos > 0 && file.out != null && now - file.segmentStart >= rotateIntervalNanos)
+                closeSegment(file);
+        }
+    }
+
+    private void write(Block block) {
+        LogFile file = block.file;
+        if (block.length > 0 && !file.failed) {
+            try {
+                if (file.out == null)
+                    openSegment(file);
+
+                int bytes = compress ? writeCompressed(file, block) : writeRaw(file, block);
+                file.segmentBytes += bytes;
+                retainedBytes += bytes;
+                bytesWritten.addAndGet(bytes);
+
+                if (rotateSize > 0 && file.segmentBytes >= rotateSize)
+                    closeSegment(file);
+            } catch (IOException e) {
+                file.failed = true;
+                System.err.println("husky: cannot write log file " + file.name + ": " + e.getMessage());
+            }
+        }
+
+        if (block.data != null && block.data.length == BLOCK_SIZE)
+            freeBuffers.offer(block.data);
+
+        if (block.close) {
+            closeSegment(file);
+            files.retire(file);
+        }
+
+        deleteOldSegments();
+    }
+
+    private int writeRaw(LogFile file, Block block) throws IOException {
+        file.out.write(block.data, 0, block.length);
+        return block.length;
+    }
+
+    private int writeCompressed(LogFile file, Block block) throws IOException {
+        int header = CompressedLogFormat.BLOCK_HEADER_SIZE;
+        int stored = Lz4.compress(block.data, 0, block.length, output, header, hashTable);
+        if (stored >= block.length) {
+            System.arraycopy(block.data, 0, output, header, block.length);
+            stored = block.length;
+        }
+
+        putInt(output, 0, block.length);
+        putInt(output, 4, stored);
+        file.out.write(output, 0, header + stored);
+        return header + stored;
+    }
+
+    private void openSegment(LogFile file) throws IOException {
+        String name = rotate ? file.name + "." + file.segment++ : file.name;
+        if (compress)
+            name += CompressedLogFormat.FILE_SUFFIX;
+
+        file.segmentFile = new File(name);
+        file.out = new FileOutputStream(file.segmentFile);
+        file.segmentBytes = 0;
+        file.segmentStart = System.nanoTime();
+
+        if (compress) {
+            byte[] header = new byte[CompressedLogFormat.HEADER_SIZE];
+            putInt(header, 0, CompressedLogFormat.MAGIC);
+            putInt(header, 4, CompressedLogFormat.VERSION);
+            putInt(header, 8, BLOCK_SIZE);
+            file.out.write(header);
+            file.segmentBytes += header.length;
+            retainedBytes += header.length;
+            bytesWritten.addAndGet(header.length);
+        }
+    }
+
+    private void closeSegment(LogFile file) {
+        if (file.out == null)
+            return;
+
+        try {
+            file.out.close();
+        } catch (IOException e) {
+            System.err.println("husky: cannot close log file " + file.segmentFile + ": " + e.getMessage());
+        }
+
+        closedSegments.add(new Segment(file.segmentFile, file.segmentBytes));
+        file.out = null;
+        file.segmentFile = null;
+    }
+
+    private void deleteOldSegments() {
+        while (retainSize > 0 && retainedBytes > retainSize && !closedSegments.isEmpty()) {
+            Segment segment = closedSegments.poll();
+            retainedBytes -= segment.bytes;
+            if (segment.file.delete()) {
+                deletedSegments++;
+                deletedBytes += segment.bytes;
+            }
+        }
+    }
+
+    private static void putInt(byte[] b, int i, int value) {
+        b[i] = (byte) (value >>> 24);
+        b[i + 1] = (byte) (value >>> 16);
+        b[i + 2] = (byte) (value >>> 8);
+        b[i + 3] = (byte) value;
+    }
+
+    static class LogFile extends ThreadStates.State {
+        final String name;
+        final ReentrantLock lock = new ReentrantLock();
+
+        /* guarded by lock */
+        byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        int length = 0;
+        boolean closed = false;
+
+        /* writer thread only */
+        FileOutputStream out;
+        File segmentFile;
+        int segment = 0;
+        long segmentBytes;
+        long segmentStart;
+        boolean failed = false;
+
+        LogFile(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Block {
+        final LogFile file;
+        final byte[] data;
+        final int length;
+        final boolean close;
+
+        Block(LogFile file, byte[] data, int length, boolean close) {
+            this.file = file;
+            this.data = data;
+            this.length = length;
+            this.close = close;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final long bytes;
+
+        Segment(File file, long bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+}
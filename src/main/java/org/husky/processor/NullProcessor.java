@@ -2,7 +2,7 @@ package org.husky.processor;
 
 import org.husky.MethodCallContext;
 
-public class NullProcessor implements InstrumentProcessor {
+public class NullProcessor implements InstrumentProcessor, BatchProcessor {
     public void processCallStart(MethodCallContext context) {}
 
     public void processCallFinish(MethodCallContext context) {}
@@ -10,4 +10,6 @@ public class NullProcessor implements InstrumentProcessor {
     public void processThrowException(MethodCallContext context) {}
 
     public void processCatchException(MethodCallContext context) {}
+
+    public void processBatch(EventBatch batch) {}
 }
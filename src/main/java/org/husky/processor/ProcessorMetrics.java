@@ -0,0 +1,6 @@
+package org.husky.processor;
+
+public interface ProcessorMetrics {
+    long getQueueDepth();
+    long getBytesWritten();
+}
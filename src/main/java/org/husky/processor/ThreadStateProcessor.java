@@ -0,0 +1,13 @@
+package org.husky.processor;
+
+import org.husky.MethodCallContext;
+
+/*
+ * Implemented by processors that keep state per thread. Once a thread has
+ * ended, retireThread() is called with its context from a husky thread,
+ * never concurrently with another callback for that context, so the state
+ * can be folded into shared totals or closed and then dropped.
+ */
+public interface ThreadStateProcessor {
+    void retireThread(MethodCallContext context);
+}
@@ -0,0 +1,71 @@
+package org.husky.processor;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * The per-thread states of a processor. A retired state is skipped by
+ * iteration at once and unlinked in batches of PURGE_BATCH, so retiring
+ * costs O(1) amortized rather than a scan of the live threads each time.
+ */
+class ThreadStates<T extends ThreadStates.State> implements Iterable<T> {
+    private static final int PURGE_BATCH = 1024;
+
+    private final ConcurrentLinkedQueue<T> states = new ConcurrentLinkedQueue<T>();
+    private int retiredSincePurge = 0;
+
+    void add(T state) {
+        states.add(state);
+    }
+
+    synchronized void retire(T state) {
+        state.retired = true;
+        if (++retiredSincePurge < PURGE_BATCH)
+            return;
+
+        retiredSincePurge = 0;
+        Iterator<T> iterator = states.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().retired)
+                iterator.remove();
+        }
+    }
+
+    public Iterator<T> iterator() {
+        final Iterator<T> iterator = states.iterator();
+        return new Iterator<T>() {
+            private T next = advance();
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public T next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+
+                T state = next;
+                next = advance();
+                return state;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private T advance() {
+                while (iterator.hasNext()) {
+                    T state = iterator.next();
+                    if (!state.retired)
+                        return state;
+                }
+                return null;
+            }
+        };
+    }
+
+    static class State {
+        volatile boolean retired = false;
+    }
+}
@@ -0,0 +1,280 @@
+package org.husky.processor;
+
+import org.husky.CallSite;
+import org.husky.CallSiteRegistry;
+import org.husky.MethodCallContext;
+import org.husky.ShutdownHook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/*
+ * Total and self time per call site, with log2 histograms, kept per thread
+ * and merged when dumped. Behind AsyncProcessor the events arrive in
+ * batches on the consumer thread and are timed by their timestamps, with
+ * one ThreadTimes per thread id of the batch.
+ */
+public class TimingProcessor implements InstrumentProcessor, ThreadStateProcessor, CloseableProcessor,
+        BatchProcessor
+{
+    public static final int BUCKETS = 32;
+
+    private static final String OUTPUT_FILE = "husky-timing.txt";
+    private static final int MIN_BUCKET_SHIFT = 6;
+
+    private static final int COUNT = 0;
+    private static final int TOTAL_TIME = 1;
+    private static final int SELF_TIME = 2;
+    private static final int TOTAL_BUCKETS = 3;
+    private static final int SELF_BUCKETS = TOTAL_BUCKETS + BUCKETS;
+    private static final int EDGE_SIZE = SELF_BUCKETS + BUCKETS;
+
+    private final ThreadStates<ThreadTimes> threads = new ThreadStates<ThreadTimes>();
+    private final ThreadTimes retired = new ThreadTimes();
+    private final ShutdownHook shutdownHook;
+
+    /* consumer thread only */
+    private final HashMap<Long, ThreadTimes> batchThreads = new HashMap<Long, ThreadTimes>();
+
+    public TimingProcessor() {
+        shutdownHook = new ShutdownHook(new Runnable() {
+            public void run() {
+                try {
+                    dump(new File(OUTPUT_FILE));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "husky-timing-shutdown");
+    }
+
+    public void processCallStart(MethodCallContext context) {
+        long now = System.nanoTime();
+        threadTimes(context).start(context.getDepth(), context.getCallSite(), now);
+    }
+
+    public void processCallFinish(MethodCallContext context) {
+        long now = System.nanoTime();
+        threadTimes(context).finish(context.getDepth(), now);
+    }
+
+    public void processThrowException(MethodCallContext context) {}
+
+    public void processCatchException(MethodCallContext context) {
+        long now = System.nanoTime();
+        threadTimes(context).finish(context.getDepth() + 1, now);
+    }
+
+    public void processBatch(EventBatch batch) {
+        long threadId = 0;
+        ThreadTimes times = null;
+        for (int i = 0; i < batch.size(); i++) {
+            if (times == null || batch.getThreadId(i) != threadId) {
+                threadId = batch.getThreadId(i);
+                times = batchThreads.get(threadId);
+                if (times == null) {
+                    times = new ThreadTimes();
+                    batchThreads.put(threadId, times);
+                    threads.add(times);
+                }
+            }
+
+            int type = batch.getType(i);
+            if (type == EventBatch.CALL_START) {
+                times.start(batch.getDepth(i), batch.getCallSite(i), batch.getTimestamp(i));
+            } else if (type == EventBatch.CALL_FINISH) {
+                times.finish(batch.getDepth(i), batch.getTimestamp(i));
+            } else if (type == EventBatch.CATCH_EXCEPTION) {
+                times.finish(batch.getDepth(i) + 1, batch.getTimestamp(i));
+            }
+        }
+    }
+
+    public void close() {
+        shutdownHook.runNow();
+    }
+
+    public void handOverShutdown() {
+        shutdownHook.handOver();
+    }
+
+    public void retireThread(MethodCallContext context) {
+        ThreadTimes times = (ThreadTimes) context.getProcessorData();
+        if (times == null)
+            times = batchThreads.remove(context.getThreadId());
+        if (times == null)
+            return;
+
+        synchronized (retired) {
+            retired.addAll(times);
+            threads.retire(times);
+        }
+        context.setProcessorData(null);
+    }
+
+    /*
+     * The edges of all threads, indexed by call site; null where a call
+     * site has no calls. Each thread's edges are merged in one pass.
+     */
+    public long[][] snapshot() {
+        ThreadTimes merged = new ThreadTimes();
+        synchronized (retired) {
+            merged.addAll(retired);
+            for (ThreadTimes times : threads) {
+                merged.addAll(times);
+            }
+        }
+
+        return merged.edges;
+    }
+
+    public void dump(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(file);
+        try {
+            writer.println("# caller callee line count total_ns self_ns " +
+                    "total_p50 total_p99 self_p50 self_p99");
+
+            long[][] edges = snapshot();
+            int size = Math.min(CallSiteRegistry.size(), edges.length);
+            for (int i = 0; i < size; i++) {
+                long[] edge = edges[i];
+                if (edge == null || edge[COUNT] == 0)
+                    continue;
+
+                CallSite site = CallSiteRegistry.get(i);
+                writer.println(site.callerClass + "." + site.callerMethod + " " +
+                        site.calleeClass + "." + site.calleeMethod + " " + site.line + " " +
+                        edge[COUNT] + " " + edge[TOTAL_TIME] + " " + edge[SELF_TIME] + " " +
+                        percentile(edge, TOTAL_BUCKETS, 0.5) + " " + percentile(edge, TOTAL_BUCKETS, 0.99) + " " +
+                        percentile(edge, SELF_BUCKETS, 0.5) + " " + percentile(edge, SELF_BUCKETS, 0.99));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private ThreadTimes threadTimes(MethodCallContext context) {
+        ThreadTimes times;
+        if ((times = (ThreadTimes) context.getProcessorData()) == null) {
+            times = new ThreadTimes();
+            context.setProcessorData(times);
+            threads.add(times);
+        }
+
+        return times;
+    }
+
+    private static long percentile(long[] edge, int offset, double percentile) {
+        long rank = (long) Math.ceil(edge[COUNT] * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += edge[offset + i];
+            if (seen >= rank)
+                return bucketUpperBound(i);
+        }
+
+        return bucketUpperBound(BUCKETS - 1);
+    }
+
+    private static int bucket(long nanos) {
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos >>> MIN_BUCKET_SHIFT);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        return 1L << (bucket + MIN_BUCKET_SHIFT);
+    }
+
+    private static class ThreadTimes extends ThreadStates.State {
+        private static final int INITIAL_DEPTH = 64;
+
+        volatile long[][] edges = new long[1024][];
+
+        private long[] startTimes = new long[INITIAL_DEPTH];
+        private long[] childTimes = new long[INITIAL_DEPTH];
+        private int[] callSites = new int[INITIAL_DEPTH];
+        private int top = 0;
+
+        void start(int depth, int callSite, long now) {
+            if (depth <= top)
+                finish(depth, now);
+
+            if (depth >= startTimes.length)
+                grow(depth);
+
+            startTimes[depth] = now;
+            childTimes[depth] = 0;
+            callSites[depth] = callSite;
+            top = depth;
+        }
+
+        void finish(int depth, long now) {
+            while (top >= depth && top > 0) {
+                long total = now - startTimes[top];
+                long self = total - childTimes[top];
+                record(callSites[top], total, self);
+
+                top--;
+                if (top > 0)
+                    childTimes[top] += total;
+            }
+        }
+
+        void addAll(ThreadTimes other) {
+            long[][] otherEdges = other.edges;
+            for (int callSite = otherEdges.length - 1; callSite >= 0; callSite--) {
+                long[] otherEdge = otherEdges[callSite];
+                if (otherEdge == null)
+                    continue;
+
+                long[] edge = edge(callSite);
+                for (int i = 0; i < EDGE_SIZE; i++) {
+                    edge[i] += otherEdge[i];
+                }
+            }
+        }
+
+        private void record(int callSite, long total, long self) {
+            long[] edge = edge(callSite);
+            edge[COUNT]++;
+            edge[TOTAL_TIME] += total;
+            edge[SELF_TIME] += self;
+            edge[TOTAL_BUCKETS + bucket(total)]++;
+            edge[SELF_BUCKETS + bucket(self)]++;
+        }
+
+        private long[] edge(int callSite) {
+            long[][] e = edges;
+            if (callSite >= e.length) {
+                long[][] grown = new long[Math.max(callSite + 1, e.length << 1)][];
+                System.arraycopy(e, 0, grown, 0, e.length);
+                edges = e = grown;
+            }
+
+            long[] edge = e[callSite];
+            if (edge == null)
+                e[callSite] = edge = new long[EDGE_SIZE];
+            return edge;
+        }
+
+        private void grow(int depth) {
+            int length = startTimes.length;
+            while (length <= depth)
+                length <<= 1;
+
+            long[] grownStart = new long[length];
+            System.arraycopy(startTimes, 0, grownStart, 0, startTimes.length);
+            startTimes = grownStart;
+
+            long[] grownChild = new long[length];
+            System.arraycopy(childTimes, 0, grownChild, 0, childTimes.length);
+            childTimes = grownChild;
+
+            int[] grownCallSites = new int[length];
+            System.arraycopy(callSites, 0, grownCallSites, 0, callSites.length);
+            callSites = grownCallSites;
+        }
+    }
+}
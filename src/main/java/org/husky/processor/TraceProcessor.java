@@ -0,0 +1,177 @@
+package org.husky.processor;
+
+import org.husky.MethodCallContext;
+import org.husky.ShutdownHook;
+import org.husky.trace.TraceFormat;
+import org.husky.trace.TraceWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * One TraceWriter per thread. A trace is closed by the shutdown hook while
+ * daemon threads may still be running, so writes and close are serialized
+ * per trace and an event that arrives after the close, or that cannot be
+ * written, is dropped and counted rather than thrown into the application.
+ */
+public class TraceProcessor implements InstrumentProcessor, ProcessorMetrics, ThreadStateProcessor,
+        CloseableProcessor
+{
+    /* processor data of a thread whose trace file could not be created */
+    private static final ThreadTrace NO_TRACE = new ThreadTrace(null, null);
+
+    private final ThreadStates<ThreadTrace> traces = new ThreadStates<ThreadTrace>();
+    private final AtomicLong retiredBytes = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final ShutdownHook shutdownHook;
+
+    public TraceProcessor() {
+        shutdownHook = new ShutdownHook(new Runnable() {
+            public void run() {
+                shutdown();
+            }
+        }, "husky-trace-shutdown");
+    }
+
+    public void processCallStart(MethodCallContext context) {
+        write(context, TraceFormat.CALL_START);
+    }
+
+    public void processCallFinish(MethodCallContext context) {
+        write(context, TraceFormat.CALL_FINISH);
+    }
+
+    public void processThrowException(MethodCallContext context) {
+        write(context, TraceFormat.THROW_EXCEPTION);
+    }
+
+    public void processCatchException(MethodCallContext context) {
+        write(context, TraceFormat.CATCH_EXCEPTION);
+    }
+
+    public void retireThread(MethodCallContext context) {
+        ThreadTrace trace = (ThreadTrace) context.getProcessorData();
+        if (trace == null)
+            return;
+
+        context.setProcessorData(null);
+        if (trace == NO_TRACE)
+            return;
+
+        try {
+            retiredBytes.addAndGet(trace.writer.size());
+            trace.close(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        traces.retire(trace);
+    }
+
+    public long getQueueDepth() {
+        return 0;
+    }
+
+    public long getBytesWritten() {
+        long bytes = retiredBytes.get();
+        for (ThreadTrace trace : traces)
+            bytes += trace.writer.size();
+        return bytes;
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    private void write(MethodCallContext context, int tag) {
+        ThreadTrace trace;
+        if ((trace = (ThreadTrace) context.getProcessorData()) == null) {
+            String fileName = context.getThreadName() + "_" + context.getThreadId() + TraceFormat.FILE_SUFFIX;
+            try {
+                trace = new ThreadTrace(Thread.currentThread(), new TraceWriter(new File(fileName)));
+                traces.add(trace);
+            } catch (IOException e) {
+                System.err.println("husky: cannot create trace file " + fileName + ": " + e.getMessage());
+                trace = NO_TRACE;
+            }
+
+            context.setProcessorData(trace);
+        }
+
+        boolean written;
+        if (context.getDepth() == 0) {
+            written = trace.write(tag, context.getId(), context.getId(),
+                    context.getCallSite(), context.getCallSite());
+        } else {
+            written = trace.write(tag, context.getId(), context.getCallerId(),
+                    context.getCallSite(), context.getCallerCallSite());
+        }
+
+        if (!written)
+            droppedEvents.incrementAndGet();
+    }
+
+    public void close() {
+        shutdownHook.runNow();
+    }
+
+    public void handOverShutdown() {
+        shutdownHook.handOver();
+    }
+
+    private void shutdown() {
+        for (ThreadTrace trace : traces) {
+            try {
+                trace.close(!trace.thread.isAlive());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        long dropped = droppedEvents.get();
+        if (dropped > 0)
+            System.err.println("husky: " + dropped + " trace events dropped");
+    }
+
+    private static class ThreadTrace extends ThreadStates.State {
+        final Thread thread;
+        final TraceWriter writer;
+
+        private boolean closed = false;
+
+        ThreadTrace(Thread thread, TraceWriter writer) {
+            this.thread = thread;
+            this.writer = writer;
+            this.closed = writer == null;
+        }
+
+        /*
+         * Only contended when the trace is closed under the running thread.
+         * A trace that fails to write is closed, keeping what it has.
+         */
+        synchronized boolean write(int tag, int id, int callerId, int callSite, int callerCallSite) {
+            if (closed)
+                return false;
+
+            try {
+                writer.writeEvent(tag, id, callerId, callSite, callerCallSite);
+                return true;
+            } catch (IOException e) {
+                System.err.println("husky: cannot write trace file: " + e.getMessage());
+                try {
+                    close(true);
+                } catch (IOException closeError) {
+                    // already reported the write
+                }
+                return false;
+            }
+        }
+
+        synchronized void close(boolean truncate) throws IOException {
+            if (!closed) {
+                closed = true;
+                writer.close(truncate);
+            }
+        }
+    }
+}
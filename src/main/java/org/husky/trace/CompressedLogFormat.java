@@ -0,0 +1,27 @@
+package org.husky.trace;
+
+/*
+ * Block-compressed log file, written by the log processor with logCompress:
+ *
+ *   int magic, int version, int block size (largest raw block length)
+ *   blocks until the end of the file:
+ *     int raw length, int stored length, stored bytes
+ *
+ * Stored bytes are an LZ4 block of the raw bytes, or the raw bytes
+ * themselves when stored length equals raw length (data that did not
+ * compress). Blocks are independent, so they can be decompressed in any
+ * order, and a block cut short by a crash reads as the end of the file.
+ * All ints are big-endian; the raw bytes are log lines in the platform
+ * charset. A block holds whole lines unless a line is longer than the
+ * block size.
+ */
+public final class CompressedLogFormat {
+    public static final int MAGIC = 0x48534b5a;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+    public static final int BLOCK_HEADER_SIZE = 8;
+
+    public static final String FILE_SUFFIX = ".hlz";
+
+    private CompressedLogFormat() {}
+}
@@ -0,0 +1,166 @@
+package org.husky.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Reads the raw bytes of a CompressedLogFormat file. Stored blocks are read
+ * in order on the calling thread and decompressed on executor, up to
+ * lookahead blocks ahead of the one being read, so a reader that parses
+ * lines keeps several cores busy decompressing. A null executor
+ * decompresses on the calling thread.
+ */
+public class CompressedLogInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Executor executor;
+    private final int lookahead;
+    private final int blockSize;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    private byte[] block = new byte[0];
+    private int position = 0;
+    private boolean eof = false;
+
+    public CompressedLogInputStream(File file, Executor executor, int lookahead) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        this.executor = executor;
+        this.lookahead = Math.max(lookahead, 1);
+
+        try {
+            if (in.readInt() != CompressedLogFormat.MAGIC)
+                throw new IOException("not a compressed log file: " + file);
+
+            int version = in.readInt();
+            if (version != CompressedLogFormat.VERSION)
+                throw new IOException("unsupported compressed log version " + version + ": " + file);
+
+            blockSize = in.readInt();
+            if (blockSize <= 0)
+                throw new IOException("bad block size " + blockSize + ": " + file);
+        } catch (EOFException e) {
+            in.close();
+            throw new IOException("not a compressed log file: " + file);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public int read() throws IOException {
+        if (position == block.length && !nextBlock())
+            return -1;
+
+        return block[position++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        int read = 0;
+        while (read < len) {
+            if (position == block.length && (read > 0 || !nextBlock()))
+                break;
+
+            int n = Math.min(len - read, block.length - position);
+            System.arraycopy(block, position, b, off + read, n);
+            position += n;
+            read += n;
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    public int available() {
+        return block.length - position;
+    }
+
+    public void close() throws IOException {
+        for (Future<byte[]> future : pending)
+            future.cancel(false);
+        pending.clear();
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        do {
+            fill();
+            Future<byte[]> future = pending.poll();
+            if (future == null)
+                return false;
+
+            block = get(future);
+            position = 0;
+        } while (block.length == 0);
+
+        fill();
+        return true;
+    }
+
+    private void fill() throws IOException {
+        while (!eof && pending.size() < lookahead) {
+            final byte[] stored;
+            final int rawLength;
+            try {
+                rawLength = in.readInt();
+                int storedLength = in.readInt();
+                if (rawLength < 0 || rawLength > blockSize || storedLength < 0 ||
+                        storedLength > Lz4.maxCompressedLength(rawLength))
+                    throw new IOException("bad block header: raw " + rawLength + ", stored " + storedLength);
+
+                stored = new byte[storedLength];
+                in.readFully(stored);
+            } catch (EOFException e) {
+                // the end of the file, or a block cut short by a crash
+                eof = true;
+                return;
+            }
+
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return decompress(stored, rawLength);
+                }
+            });
+            if (executor == null) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+            pending.add(task);
+        }
+    }
+
+    private static byte[] decompress(byte[] stored, int rawLength) throws IOException {
+        if (stored.length == rawLength)
+            return stored;
+
+        byte[] raw = new byte[rawLength];
+        int length = Lz4.decompress(stored, 0, stored.length, raw, 0, rawLength);
+        if (length != rawLength)
+            throw new IOException("corrupt LZ4 block: " + length + " of " + rawLength + " bytes");
+        return raw;
+    }
+
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
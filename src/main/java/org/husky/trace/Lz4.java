@@ -0,0 +1,189 @@
+package org.husky.trace;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * LZ4 block format (no frame, no dictionary) in plain Java: a greedy
+ * single-probe compressor that skips ahead faster the longer it finds no
+ * match, and a bounds-checked decompressor. Output is readable by any LZ4
+ * block decoder.
+ *
+ * A sequence is a token (literal length << 4 | match length - 4, 15 meaning
+ * more length bytes follow), the literals, a little-endian two-byte offset
+ * and the extra match length bytes. The last sequence has literals only, and
+ * no match starts within the last 12 or covers the last 5 bytes.
+ */
+public final class Lz4 {
+    public static final int HASH_TABLE_SIZE = 1 << 14;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int SKIP_TRIGGER = 6;
+
+    private Lz4() {}
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /*
+     * Compresses src[srcOff, srcOff + srcLen) into dst at dstOff, which must
+     * have maxCompressedLength(srcLen) bytes left; table is scratch space of
+     * HASH_TABLE_SIZE ints. Returns the compressed length.
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+        int end = srcOff + srcLen;
+        int mfLimit = end - MF_LIMIT;
+        int matchLimit = end - LAST_LITERALS;
+        int anchor = srcOff;
+        int ip = srcOff + 1;
+        int op = dstOff;
+
+        Arrays.fill(table, -1);
+        int misses = 0;
+        while (ip < mfLimit) {
+            int sequence = readInt(src, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+
+            while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+
+            int length = MIN_MATCH;
+            while (ip + length < matchLimit && src[ip + length] == src[ref + length])
+                length++;
+
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, length, dst, op);
+            ip += length;
+            anchor = ip;
+
+            if (ip < mfLimit)
+                table[hash(readInt(src, ip - 2))] = ip - 2;
+        }
+
+        int literals = end - anchor;
+        int token = op++;
+        dst[token] = (byte) (Math.min(literals, 15) << 4);
+        op = writeLength(literals - 15, dst, op);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    /*
+     * Decompresses srcLen bytes at srcOff into dst at dstOff and returns the
+     * decompressed length, at most dstLen.
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws IOException
+    {
+        int ip = srcOff;
+        int end = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        while (true) {
+            if (ip >= end)
+                throw new IOException("corrupt LZ4 block: missing token at " + (ip - srcOff));
+
+            int token = src[ip++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= end)
+                        throw new IOException("corrupt LZ4 block: truncated literal length");
+                    b = src[ip++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+
+            if (literals > end - ip || literals > dstEnd - op)
+                throw new IOException("corrupt LZ4 block: literals overrun at " + (ip - srcOff));
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+
+            if (ip == end)
+                return op - dstOff;
+
+            if (end - ip < 2)
+                throw new IOException("corrupt LZ4 block: truncated offset");
+            int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+
+            int length = token & 15;
+            if (length == 15) {
+                int b;
+                do {
+                    if (ip >= end)
+                        throw new IOException("corrupt LZ4 block: truncated match length");
+                    b = src[ip++] & 0xff;
+                    length += b;
+                } while (b == 255);
+            }
+            length += MIN_MATCH;
+
+            int ref = op - offset;
+            if (offset == 0 || ref < dstOff || length > dstEnd - op)
+                throw new IOException("corrupt LZ4 block: bad match at " + (ip - srcOff));
+
+            if (offset >= length) {
+                System.arraycopy(dst, ref, dst, op, length);
+            } else {
+                for (int i = 0; i < length; i++)
+                    dst[op + i] = dst[ref + i];
+            }
+            op += length;
+        }
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int length,
+                                     byte[] dst, int op)
+    {
+        int token = op++;
+        int matchCode = length - MIN_MATCH;
+        dst[token] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchCode, 15));
+
+        op = writeLength(literals - 15, dst, op);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        return writeLength(matchCode - 15, dst, op);
+    }
+
+    /*
+     * The extra length bytes after a field of 15; nothing when remaining < 0.
+     */
+    private static int writeLength(int remaining, byte[] dst, int op) {
+        if (remaining < 0)
+            return op;
+
+        while (remaining >= 255) {
+            dst[op++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[op++] = (byte) remaining;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> 18;
+    }
+}
@@ -0,0 +1,103 @@
+package org.husky.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TraceDecoder {
+    private static final int DECOMPRESS_LOOKAHEAD = 8;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: TraceDecoder <trace or compressed log file> [output file]");
+            System.exit(1);
+        }
+
+        Writer out = args.length > 1
+                ? new FileWriter(args[1])
+                : new OutputStreamWriter(System.out);
+
+        BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+        try {
+            decode(new File(args[0]), writer);
+        } finally {
+            writer.flush();
+            if (args.length > 1)
+                writer.close();
+        }
+    }
+
+    public static void decode(File file, Writer writer) throws IOException {
+        if (file.getName().endsWith(CompressedLogFormat.FILE_SUFFIX)) {
+            decompress(file, writer);
+            return;
+        }
+
+        TraceReader reader = new TraceReader(file);
+        try {
+            int tag;
+            while ((tag = reader.next()) != TraceFormat.END) {
+                String prefix = prefix(tag);
+                if (prefix == null)
+                    continue;
+
+                writer.write(prefix);
+                writer.write(' ');
+                writer.write(Integer.toString(reader.getId()));
+                writer.write(' ');
+                writer.write(Integer.toString(reader.getCallerId()));
+                writer.write(' ');
+                writer.write(reader.getCalleeName());
+                writer.write(' ');
+                writer.write(reader.getCallerName());
+                writer.write(' ');
+                writer.write(Integer.toString(reader.getLine()));
+                writer.write('\n');
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * A compressed log decodes to the plain log it was written from; blocks
+     * are inflated on a pool while the earlier ones are written.
+     */
+    public static void decompress(File file, Writer writer) throws IOException {
+        ExecutorService decompressors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Reader reader = new InputStreamReader(new CompressedLogInputStream(file, decompressors,
+                    DECOMPRESS_LOOKAHEAD));
+            try {
+                char[] buffer = new char[1 << 16];
+                int n;
+                while ((n = reader.read(buffer)) > 0)
+                    writer.write(buffer, 0, n);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            decompressors.shutdownNow();
+        }
+    }
+
+    private static String prefix(int tag) {
+        switch (tag) {
+            case TraceFormat.CALL_START:
+                return "+";
+            case TraceFormat.CALL_FINISH:
+                return "-";
+            case TraceFormat.THROW_EXCEPTION:
+                return "*";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.husky.trace;
+
+/*
+ * Binary trace file, one per thread:
+ *
+ *   int magic, int version
+ *   records until an END tag (a zero byte, so an unfinished mapped tail
+ *   reads as the end of the file)
+ *
+ * Every record starts with a one-byte tag followed by unsigned LEB128
+ * varints. STRING and CALL_SITE records define a string or call site the
+ * first time an event of the file refers to it:
+ *
+ *   STRING     id, byte length, UTF-8 bytes
+ *   CALL_SITE  id, caller class, caller method, callee class, callee method
+ *              (string ids), opcode + 1, line
+ *   events     frame id, caller frame id, call site, caller call site
+ *
+ * The root frame always has id 0 and is named after the caller of its
+ * call site.
+ */
+public final class TraceFormat {
+    public static final int MAGIC = 0x48534b54;
+    public static final int VERSION = 1;
+
+    public static final int END = 0;
+    public static final int STRING = 1;
+    public static final int CALL_SITE = 2;
+    public static final int CALL_START = 3;
+    public static final int CALL_FINISH = 4;
+    public static final int THROW_EXCEPTION = 5;
+    public static final int CATCH_EXCEPTION = 6;
+
+    public static final String FILE_SUFFIX = ".trace";
+
+    private TraceFormat() {}
+}
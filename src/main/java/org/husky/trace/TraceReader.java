@@ -0,0 +1,160 @@
+package org.husky.trace;
+
+import org.husky.CallSite;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+public class TraceReader implements Closeable {
+    private static final long WINDOW_SIZE = 64 << 20;
+    private static final int MIN_REMAINING = 1 << 17;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private final ArrayList<String> strings = new ArrayList<String>();
+    private CallSite[] callSites = new CallSite[256];
+
+    private int id;
+    private int callerId;
+    private int callSite;
+    private int callerCallSite;
+
+    public TraceReader(File file) throws IOException {
+        channel = new RandomAccessFile(file, "r").getChannel();
+        fileSize = channel.size();
+        map(0);
+
+        if (window.remaining() < 8 || window.getInt() != TraceFormat.MAGIC)
+            throw new IOException("not a trace file: " + file);
+
+        int version = window.getInt();
+        if (version != TraceFormat.VERSION)
+            throw new IOException("unsupported trace version " + version + ": " + file);
+    }
+
+    public int next() throws IOException {
+        while (true) {
+            if (window.remaining() < MIN_REMAINING && windowStart + window.limit() < fileSize)
+                map(windowStart + window.position());
+
+            if (!window.hasRemaining())
+                return TraceFormat.END;
+
+            int tag = window.get() & 0xff;
+            switch (tag) {
+                case TraceFormat.STRING:
+                    readString();
+                    break;
+                case TraceFormat.CALL_SITE:
+                    readCallSite();
+                    break;
+                case TraceFormat.CALL_START:
+                case TraceFormat.CALL_FINISH:
+                case TraceFormat.THROW_EXCEPTION:
+                case TraceFormat.CATCH_EXCEPTION:
+                    id = getVarint();
+                    callerId = getVarint();
+                    callSite = getVarint();
+                    callerCallSite = getVarint();
+                    return tag;
+                case TraceFormat.END:
+                    return TraceFormat.END;
+                default:
+                    throw new IOException("bad record tag " + tag + " at " + (windowStart + window.position() - 1));
+            }
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getCallerId() {
+        return callerId;
+    }
+
+    public CallSite getCallSite() {
+        return callSites[callSite];
+    }
+
+    public CallSite getCallerCallSite() {
+        return callSites[callerCallSite];
+    }
+
+    public String getCalleeName() {
+        CallSite site = callSites[callSite];
+        if (id == 0)
+            return site.callerClass + "." + site.callerMethod;
+        return site.calleeClass + "." + site.calleeMethod;
+    }
+
+    public String getCallerName() {
+        CallSite site = callSites[callerCallSite];
+        if (callerId == 0)
+            return site.callerClass + "." + site.callerMethod;
+        return site.calleeClass + "." + site.calleeMethod;
+    }
+
+    public int getLine() {
+        return id == 0 ? 0 : callSites[callSite].line;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readString() {
+        int stringId = getVarint();
+        byte[] bytes = new byte[getVarint()];
+        window.get(bytes);
+
+        while (strings.size() <= stringId)
+            strings.add(null);
+        strings.set(stringId, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private void readCallSite() {
+        int siteId = getVarint();
+        String callerClass = strings.get(getVarint());
+        String callerMethod = strings.get(getVarint());
+        String calleeClass = strings.get(getVarint());
+        String calleeMethod = strings.get(getVarint());
+        int opcode = getVarint() - 1;
+        int line = getVarint();
+
+        if (siteId >= callSites.length) {
+            CallSite[] grown = new CallSite[Math.max(siteId + 1, callSites.length << 1)];
+            System.arraycopy(callSites, 0, grown, 0, callSites.length);
+            callSites = grown;
+        }
+        callSites[siteId] = new CallSite(siteId, callerClass, callerMethod, calleeClass, calleeMethod, opcode, line);
+    }
+
+    private int getVarint() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = window.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        return value;
+    }
+
+    private void map(long position) throws IOException {
+        long size = Math.min(WINDOW_SIZE, fileSize - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        windowStart = position;
+    }
+}
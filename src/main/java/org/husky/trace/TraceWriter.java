@@ -0,0 +1,118 @@
+package org.husky.trace;
+
+import org.husky.CallSite;
+import org.husky.CallSiteRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+
+public class TraceWriter {
+    private static final int REGION_SIZE = 4 << 20;
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int MAX_EVENT_SIZE = 1 + 4 * MAX_VARINT_SIZE;
+    private static final int MAX_CALL_SITE_SIZE = 1 + 7 * MAX_VARINT_SIZE;
+
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+    private final BitSet callSites = new BitSet();
+
+    public TraceWriter(File file) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        map(0);
+
+        region.putInt(TraceFormat.MAGIC);
+        region.putInt(TraceFormat.VERSION);
+    }
+
+    public void writeEvent(int tag, int id, int callerId, int callSite, int callerCallSite) throws IOException {
+        defineCallSite(callSite);
+        defineCallSite(callerCallSite);
+
+        ensure(MAX_EVENT_SIZE);
+        region.put((byte) tag);
+        putVarint(id);
+        putVarint(callerId);
+        putVarint(callSite);
+        putVarint(callerCallSite);
+    }
+
+    public long size() {
+        return regionStart + region.position();
+    }
+
+    public void close(boolean truncate) throws IOException {
+        region.force();
+        if (truncate)
+            channel.truncate(size());
+        channel.close();
+    }
+
+    private void defineCallSite(int id) throws IOException {
+        if (callSites.get(id))
+            return;
+
+        CallSite site = CallSiteRegistry.get(id);
+        int callerClass = defineString(site.callerClass);
+        int callerMethod = defineString(site.callerMethod);
+        int calleeClass = defineString(site.calleeClass);
+        int calleeMethod = defineString(site.calleeMethod);
+
+        ensure(MAX_CALL_SITE_SIZE);
+        region.put((byte) TraceFormat.CALL_SITE);
+        putVarint(id);
+        putVarint(callerClass);
+        putVarint(callerMethod);
+        putVarint(calleeClass);
+        putVarint(calleeMethod);
+        putVarint(site.opcode + 1);
+        putVarint(site.line);
+
+        callSites.set(id);
+    }
+
+    private int defineString(String s) throws IOException {
+        Integer id = strings.get(s);
+        if (id != null)
+            return id;
+
+        id = strings.size();
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+        ensure(1 + 2 * MAX_VARINT_SIZE + bytes.length);
+        region.put((byte) TraceFormat.STRING);
+        putVarint(id);
+        putVarint(bytes.length);
+        region.put(bytes);
+
+        strings.put(s, id);
+        return id;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            region.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        region.put((byte) value);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (region.remaining() < bytes)
+            map(size());
+    }
+
+    private void map(long position) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+        regionStart = position;
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class AsyncProcessorTest {
+    private static final int THREADS = 8;
+    private static final int CALLS = 10000;
+
+    public static int leaf(int i) {
+        return i + 1;
+    }
+
+    public static int work(int calls) {
+        int sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += leaf(i);
+        }
+        return sum;
+    }
+
+    /*
+     * Runs the workload in child JVMs with the graph and cct processors,
+     * synchronous and behind async with the default options, and fails
+     * unless both write the same output: async must hand every event to
+     * its delegate before the delegate writes at exit. Run with
+     * -javaagent:...=processor=null; the children get the same agent jar.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            runWorkload();
+            return;
+        }
+
+        File dir = Files.createTempDirectory("husky-async").toFile();
+        compare(dir, "graph", "husky-callgraph.txt");
+        compare(dir, "cct", "husky-cct.folded");
+
+        System.out.println("OK: async graph and cct output match the synchronous output");
+    }
+
+    private static void runWorkload() throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    work(CALLS);
+                }
+            }, "worker-" + i);
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    private static void compare(File dir, String processor, String output) throws Exception {
+        List<String> sync = run(new File(dir, processor), "processor=" + processor, output);
+        List<String> async = run(new File(dir, processor + "-async"), "processor=" + processor + ":async", output);
+
+        boolean complete = false;
+        for (String line : sync)
+            complete |= line.contains("AsyncProcessorTest.leaf ") && line.endsWith(" " + THREADS * CALLS);
+        if (!complete)
+            throw new IllegalStateException(processor + ": expected " + THREADS * CALLS + " leaf calls in " + sync);
+
+        if (!sync.equals(async))
+            throw new IllegalStateException(processor + ": async output " + async + " differs from " + sync);
+    }
+
+    private static List<String> run(File dir, String options, String output) throws Exception {
+        if (!dir.mkdir())
+            throw new IllegalStateException("cannot create " + dir);
+
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        String agent = null;
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-javaagent:")) {
+                int end = argument.indexOf('=');
+                agent = end < 0 ? argument : argument.substring(0, end);
+            } else {
+                command.add(argument);
+            }
+        }
+        if (agent == null)
+            throw new IllegalStateException("run with -javaagent:...=processor=null");
+
+        command.add(agent + "=" + options);
+        command.add("-cp");
+        command.add(new File(System.getProperty("java.class.path")).getAbsolutePath());
+        command.add("AsyncProcessorTest");
+        command.add("child");
+
+        Process process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null)
+            System.out.println(options + ": " + line);
+        if (process.waitFor() != 0)
+            throw new IllegalStateException(options + ": exit " + process.exitValue());
+
+        List<String> lines = new ArrayList<String>();
+        reader = new BufferedReader(new FileReader(new File(dir, output)));
+        try {
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        } finally {
+            reader.close();
+        }
+
+        Collections.sort(lines);
+        return lines;
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+public class MultiThreadCallGraphTest {
+    private static final int THREADS = 8;
+    private static final int CALLS = 10000;
+
+    public static int leaf(int i) {
+        return i + 1;
+    }
+
+    public static int work(int calls) {
+        int sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += leaf(i);
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    work(CALLS);
+                }
+            }, "worker-" + i);
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        for (Thread thread : threads) {
+            File log = new File(thread.getName() + "_" + thread.getId());
+            if (!log.exists())
+                throw new IllegalStateException("no trace file " + log +
+                        ", run with -javaagent:...=processor=log:includeJdkMethod");
+
+            int starts = 0, finishes = 0;
+            BufferedReader reader = new BufferedReader(new FileReader(log));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.contains(" MultiThreadCallGraphTest.leaf "))
+                        continue;
+
+                    if (line.startsWith("+ "))
+                        starts++;
+                    else if (line.startsWith("- "))
+                        finishes++;
+                }
+            } finally {
+                reader.close();
+            }
+
+            if (starts != CALLS || finishes != CALLS)
+                throw new IllegalStateException(log + ": expected " + CALLS + " calls, got "
+                        + starts + " starts and " + finishes + " finishes");
+        }
+
+        System.out.println("OK: " + THREADS + " threads x " + CALLS + " calls traced");
+    }
+}
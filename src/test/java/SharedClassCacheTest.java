@@ -0,0 +1,101 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SharedClassCacheTest {
+    static class First {
+        static void run() {
+            a();
+            b();
+            c();
+            d();
+        }
+
+        static void a() {}
+        static void b() {}
+        static void c() {}
+        static void d() {}
+    }
+
+    static class Second {
+        static void run() {
+            target();
+        }
+
+        static void target() {}
+    }
+
+    /*
+     * Two JVMs on one cacheDir: this one holds the cache lock, the reader it
+     * starts only reads. The reader registers First's call sites, then loads
+     * Second after this JVM cached it with other IDs for the same numbers,
+     * and must still trace Second's own call. Run with
+     * -javaagent:...=processor=log:cacheDir=<empty dir>.
+     */
+    public static void main(String[] args) throws Exception {
+        boolean reader = args.length > 0;
+        Thread.currentThread().setName(reader ? "reader" : "writer");
+
+        if (reader) {
+            First.run();
+            System.out.println("ready");
+            new BufferedReader(new InputStreamReader(System.in)).readLine();
+            Second.run();
+            return;
+        }
+
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        boolean cached = false;
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            command.add(argument);
+            cached |= argument.startsWith("-javaagent:") && argument.contains("cacheDir=");
+        }
+        if (!cached)
+            throw new IllegalStateException("run with -javaagent:...=processor=log:cacheDir=<empty dir>");
+
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("SharedClassCacheTest");
+        command.add("reader");
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line = output.readLine();
+        if (!"ready".equals(line))
+            throw new IllegalStateException("reader: " + line);
+
+        Second.run();
+
+        Writer input = new OutputStreamWriter(process.getOutputStream());
+        input.write("go\n");
+        input.close();
+        while ((line = output.readLine()) != null)
+            System.out.println("reader: " + line);
+        if (process.waitFor() != 0)
+            throw new IllegalStateException("reader exited with " + process.exitValue());
+
+        File log = new File("reader_" + Thread.currentThread().getId());
+        if (!log.exists())
+            throw new IllegalStateException("no trace file " + log);
+
+        boolean traced = false;
+        BufferedReader trace = new BufferedReader(new FileReader(log));
+        try {
+            while ((line = trace.readLine()) != null)
+                traced |= line.contains(" SharedClassCacheTest$Second.target SharedClassCacheTest$Second.run ");
+        } finally {
+            trace.close();
+        }
+
+        if (!traced)
+            throw new IllegalStateException(log + " does not trace Second.run calling Second.target");
+        System.out.println("OK: the reader traced its own call sites in Second");
+    }
+}
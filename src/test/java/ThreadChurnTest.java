@@ -0,0 +1,129 @@
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+public class ThreadChurnTest {
+    private static final int ROUNDS = 10;
+    private static final int THREADS = 5000;
+    private static final int CALLS = 100;
+    private static final long SLACK_BYTES = 32L << 20;
+
+    private static Object virtualBuilder;
+    private static Method virtualUnstarted;
+
+    public static int leaf(int i) {
+        return i + 1;
+    }
+
+    public static int work(int calls) {
+        int sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += leaf(i);
+        }
+        return sum;
+    }
+
+    /*
+     * Runs ROUNDS x THREADS short-lived threads, virtual ones when the JVM
+     * has them, and checks that heap, open files and the agent's thread
+     * contexts stay flat from round to round. Run with
+     * -javaagent:...=processor=log:logSinks=4:jmx (or any processor with jmx).
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println((initVirtualThreads() ? "virtual" : "platform") + " threads");
+
+        long firstHeap = -1;
+        long firstFiles = -1;
+        for (int round = 0; round < ROUNDS; round++) {
+            Thread[] threads = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                Runnable task = new Runnable() {
+                    public void run() {
+                        work(CALLS);
+                    }
+                };
+                threads[i] = newThread(task);
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+
+            int contexts = settle();
+            long heap = usedHeap();
+            long files = openFiles();
+            System.out.println("round " + round + ": heap " + (heap >> 20) + " MB, open files " + files +
+                    ", thread contexts " + contexts);
+
+            if (round == 1) {
+                firstHeap = heap;
+                firstFiles = files;
+            } else if (round > 1) {
+                if (heap > firstHeap + SLACK_BYTES)
+                    throw new IllegalStateException("heap grew from " + firstHeap + " to " + heap);
+                if (files > firstFiles + 16)
+                    throw new IllegalStateException("open files grew from " + firstFiles + " to " + files);
+                if (contexts > THREADS)
+                    throw new IllegalStateException(contexts + " thread contexts after " + (round + 1) * THREADS +
+                            " threads ended");
+            }
+        }
+
+        System.out.println("OK: " + ROUNDS * THREADS + " threads");
+    }
+
+    private static boolean initVirtualThreads() {
+        try {
+            virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtualUnstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            return true;
+        } catch (Exception e) {
+            virtualBuilder = null;
+            return false;
+        }
+    }
+
+    private static Thread newThread(Runnable task) throws Exception {
+        if (virtualBuilder == null)
+            return new Thread(task);
+
+        return (Thread) virtualUnstarted.invoke(virtualBuilder, task);
+    }
+
+    /*
+     * Waits for the agent to retire the ended threads, returns the contexts
+     * it still holds or -1 without the agent's MBean.
+     */
+    private static int settle() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.husky:type=AgentMetrics");
+        if (!server.isRegistered(name)) {
+            Thread.sleep(1000);
+            return -1;
+        }
+
+        int contexts = 0;
+        for (int i = 0; i < 30; i++) {
+            contexts = (Integer) server.getAttribute(name, "ThreadContexts");
+            if (contexts < THREADS / 10)
+                break;
+            Thread.sleep(100);
+        }
+        return contexts;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long openFiles() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+}